@@ -9,10 +9,13 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.UnknownHostException;
-import java.nio.charset.StandardCharsets;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 import org.apache.commons.cli.CommandLine;
@@ -22,13 +25,14 @@ import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
-import org.apache.commons.codec.binary.Base64;
 
 import pb.managers.ClientManager;
 import pb.managers.IOThread;
 import pb.managers.PeerManager;
 import pb.managers.ServerManager;
 import pb.managers.endpoint.Endpoint;
+import pb.protocols.event.EventProtocol;
+import pb.protocols.session.SessionProtocol;
 import pb.utils.Utils;
 
 /**
@@ -57,12 +61,11 @@ public class FileSharingPeer {
 	
 	/**
 	 * Emitted when a peer is sending a chunk of a file to another peer.
-	 * The single argument is a string that is a Base64 encoded byte array
-	 * that represents the chunk of the file. If the argument
-	 * is the empty string "" then it indicates there are no more
-	 * chunks to receive.
+	 * The single argument is a byte array that is the chunk of the file,
+	 * sent as binary event data. If the argument is instead the empty
+	 * string "" then it indicates there are no more chunks to receive.
 	 * <ul>
-	 * <li>{@code args[0] instanceof String}
+	 * <li>{@code args[0] instanceof byte[]} or {@code args[0] instanceof String}
 	 * </ul>
 	 */
 	private static final String fileContents = "FILE_CONTENTS";
@@ -75,6 +78,12 @@ public class FileSharingPeer {
 	 */
 	private static final String fileError = "FILE_ERROR";
 	
+	static {
+		// file chunks and index updates are streamed over a connection that is
+		// kept alive anyway, so don't double the message count with replies
+		EventProtocol.sendUnacknowledged(fileContents, IndexServer.indexUpdate);
+	}
+	
 	/**
 	 * port to use for this peer's server
 	 */
@@ -96,6 +105,18 @@ public class FileSharingPeer {
 	 */
 	private static int chunkSize=Utils.chunkSize;
 	
+	/**
+	 * most time to wait (ms) for the next chunk of a file being downloaded
+	 * before giving up on it, since chunks are not acknowledged and a peer
+	 * that stops sending them would otherwise hold up the download for good
+	 */
+	private static int downloadTimeout=20000;
+	
+	/**
+	 * most files downloaded at once, the other query hits wait their turn
+	 */
+	private static int maxDownloads=4;
+	
 	/**
 	 * buffer for file reading
 	 */
@@ -119,9 +140,7 @@ public class FileSharingPeer {
 				endpoint.emit(fileContents, ""); // signals no more bytes in file
 				in.close();
 			} else {
-				endpoint.emit(fileContents, new String(Base64.encodeBase64(
-						Arrays.copyOfRange(buffer, 0, read)),
-						StandardCharsets.US_ASCII));
+				endpoint.emit(fileContents, Arrays.copyOfRange(buffer, 0, read));
 				if(read<chunkSize) {
 					endpoint.emit(fileContents, "");
 					in.close();
@@ -152,23 +171,20 @@ public class FileSharingPeer {
 	}
 	
 	/**
-	 * Emit a filename as an index update if possible, close when all done.
+	 * Emit the filenames as index updates, close when all done. The updates
+	 * are emitted in one go and the event protocol batches them into as few
+	 * messages as it can.
 	 * @param filenames
 	 * @param endpoint
 	 */
 	public static void emitIndexUpdate(String peerport,List<String> filenames,Endpoint endpoint,
 			ClientManager clientManager) {
-		if(filenames.size()==0) {
-			clientManager.shutdown(); // no more index updates to do
-		} else {
-			String filename=filenames.remove(0);
+		for(String filename : filenames) {
 			log.info("Sending index update: "+peerport+":"+filename);
 			// an index update has the format: host:port:filename
 			endpoint.emit(IndexServer.indexUpdate, peerport+":"+filename);
-			Utils.getInstance().setTimeout(()->{
-				emitIndexUpdate(peerport,filenames,endpoint,clientManager);
-			}, 100); // send 10 index updates per second, this shouldn't kill the bandwidth :-]
 		}
+		clientManager.shutdown(); // no more index updates to do
 	}
 	
 	/**
@@ -259,9 +275,11 @@ public class FileSharingPeer {
 	/**
 	 * Process a query response from the index server and download the file
 	 * @param queryResponse
+	 * @return the client manager that downloads the file, or null if the
+	 * download could not be started
 	 * @throws InterruptedException 
 	 */
-	private static void getFileFromPeer(PeerManager peerManager,String response) throws InterruptedException {
+	private static ClientManager getFileFromPeer(PeerManager peerManager,String response) throws InterruptedException {
 		// Create a independent client manager (thread) for each download
 		// response has the format: PeerIP:PeerPort:filename
 		String[] parts=response.split(":",3);
@@ -270,19 +288,23 @@ public class FileSharingPeer {
 			clientManager = peerManager.connect(Integer.valueOf(parts[1]),parts[0]);
 		} catch (NumberFormatException e) {
 			System.out.println("Response from index server is bad, port is not a number: "+parts[1]);
-			return;
+			return null;
 		} catch (UnknownHostException e) {
 			System.out.println("Could not find the peer IP address: "+parts[0]);
-			return;
+			return null;
 		}
 		try {
 			OutputStream out = new FileOutputStream(parts[2]);
+			// when the last chunk came, or -1 once the download is over
+			AtomicLong lastChunk = new AtomicLong(Instant.now().toEpochMilli());
 			clientManager.on(PeerManager.peerStarted, (args)->{
 				Endpoint endpoint = (Endpoint)args[0];
 				endpoint.on(fileContents,(args2)->{
-					String chunk = (String) args2[0];
-					if(chunk.length()==0) {
+					long now = Instant.now().toEpochMilli();
+					if(lastChunk.getAndUpdate((last)->last<0?last:now)<0) return; // given up
+					if(!(args2[0] instanceof byte[])) {
 						// file download complete
+						lastChunk.set(-1);
 						try {
 							out.close();
 						} catch (IOException e) {
@@ -290,14 +312,16 @@ public class FileSharingPeer {
 						}
 						clientManager.shutdown();
 					} else {
+						byte[] chunk = (byte[]) args2[0];
 						try {
-							out.write(Base64.decodeBase64(chunk));
+							out.write(chunk);
 						} catch (IOException e) {
-							System.out.println("Error writing file chunk: "+chunk);
+							System.out.println("Error writing file chunk of "+chunk.length+" bytes");
 						}
 					}
 				}).on(fileError, (args2)->{
 					System.out.println("Error downloading file");
+					lastChunk.set(-1);
 					clientManager.shutdown();
 				});
 				System.out.println("Getting file "+parts[2]+" from "+endpoint.getOtherEndpointId());
@@ -311,13 +335,58 @@ public class FileSharingPeer {
 						+endpoint.getOtherEndpointId());
 			});
 			clientManager.start();
-			// we can't call clientManager.join() because the thread that called this method is
-			// the endpoint thread from the query to the index server, which needs
-			// to continue to process its session, so we can join with this later
+			checkDownload(clientManager,out,parts[2],lastChunk);
+			return clientManager;
 		} catch (FileNotFoundException e) {
 			System.out.println("Could not create file: "+parts[2]);
-		}	
-		
+			return null;
+		}
+	}
+	
+	/**
+	 * Download the files of query responses one at a time, until given the
+	 * empty string. A number of these run at once, see {@link #maxDownloads}.
+	 * @param peerManager
+	 * @param responses the query responses, then ""
+	 */
+	private static void downloadFiles(PeerManager peerManager,BlockingQueue<String> responses) {
+		try {
+			for(String response=responses.take();!response.isEmpty();response=responses.take()) {
+				ClientManager clientManager = getFileFromPeer(peerManager,response);
+				if(clientManager!=null) clientManager.awaitTermination();
+			}
+		} catch (InterruptedException e) {
+			System.out.println("interrupted while downloading files");
+		}
+	}
+	
+	/**
+	 * Give up on a download if no chunk of the file has come for
+	 * {@link #downloadTimeout} ms, otherwise check again when it would be due.
+	 * @param clientManager the connection to the peer sending the file
+	 * @param out the file being downloaded
+	 * @param filename
+	 * @param lastChunk when the last chunk came, or -1 once the download is over
+	 */
+	private static void checkDownload(ClientManager clientManager, OutputStream out, String filename,
+			AtomicLong lastChunk) {
+		long last = lastChunk.get();
+		if(last<0) return;
+		long idle = Instant.now().toEpochMilli()-last;
+		if(idle<downloadTimeout) {
+			Utils.getInstance().setTimeout(()->{
+				checkDownload(clientManager,out,filename,lastChunk);
+			}, downloadTimeout-idle);
+			return;
+		}
+		if(!lastChunk.compareAndSet(last,-1)) return;
+		System.out.println("Download of "+filename+" stalled, giving up");
+		try {
+			out.close();
+		} catch (IOException e) {
+			System.out.println("Possible error with downloaded file: "+filename);
+		}
+		clientManager.shutdown();
 	}
 	
 	/**
@@ -330,29 +399,40 @@ public class FileSharingPeer {
 		String query = String.join(",",keywords);
 		// connect to the index server and tell it the files we are sharing
 		PeerManager peerManager = new PeerManager(peerPort);
+		// the downloads are not made on the endpoint thread, which needs to
+		// carry on receiving the hits
+		BlockingQueue<String> downloads = new LinkedBlockingQueue<>();
+		List<Thread> downloaders = new ArrayList<>();
+		for(int i=0;i<maxDownloads;i++) {
+			Thread downloader = new Thread(()->downloadFiles(peerManager,downloads),"Downloader");
+			downloader.start();
+			downloaders.add(downloader);
+		}
         ClientManager clientManager = peerManager.connect(indexServerPort, host);
         clientManager.on(PeerManager.peerStarted, (args)->{
 			Endpoint endpoint = (Endpoint)args[0];
 			System.out.println("Connected to index server: "+endpoint.getOtherEndpointId());
-			endpoint.on(IndexServer.queryResponse, (args2)->{
-				String response = (String) args2[0];
-				if(response.length()==0) {
-					System.out.println("Received all responses.");
-					clientManager.shutdown();
-				} else {
+			// the hits come back in batches, so downloads start with the first one
+			endpoint.on(IndexServer.queryHitsKey, (hits)->{
+				for(String response : hits.split("\n")) {
 					System.out.println("Received query response: "+response);
-					try {
-						getFileFromPeer(peerManager,response);
-					} catch (InterruptedException e) {
-						System.out.println("interrupted while trying to download: "+response);
-					}
+					if(!response.isEmpty()) downloads.add(response);
 				}
-			}).on(IndexServer.queryError, (args2)->{
-				System.out.println("Index server did not accept the query: "+query);
+			}).on(IndexServer.queryEndKey, (total)->{
+				System.out.println("Received all "+total+" responses.");
+				clientManager.shutdown();
+			}).on(EventProtocol.rateLimited, (args2)->{
+				System.out.println("Index server did not accept the query: "+query+" (rate limited)");
 				clientManager.shutdown();
 			});
+			SessionProtocol session=(SessionProtocol) endpoint.getProtocol(SessionProtocol.protocolName);
+			if(session!=null && session.isResumed()) {
+				// the index server carries on with the hits on the new connection
+				System.out.println("Resumed the query with the index server.");
+				return;
+			}
 			System.out.println("Sending query to the index server.");
-			endpoint.emit(IndexServer.queryIndex, query);
+			endpoint.emit(IndexServer.queryStreamKey, query);
 		}).on(PeerManager.peerStopped, (args)->{
 			Endpoint endpoint = (Endpoint)args[0];
 			System.out.println("Disconnected from the index server: "+endpoint.getOtherEndpointId());
@@ -364,9 +444,11 @@ public class FileSharingPeer {
         clientManager.start();
         clientManager.join(); // wait for the query to finish
         /*
-         * We also have to join with any other client managers that were started for
-         * download purposes.
+         * We also have to wait for the downloads, then join with the client
+         * managers that were started for them.
          */
+        for(int i=0;i<maxDownloads;i++) downloads.add(""); // no more files
+        for(Thread downloader : downloaders) downloader.join();
         peerManager.joinWithClientManagers();
 	}
 	
@@ -1,15 +1,24 @@
 package pb;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.time.Instant;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Logger;
 
 import org.apache.commons.cli.CommandLine;
@@ -22,10 +31,32 @@ import org.apache.commons.cli.ParseException;
 import pb.managers.IOThread;
 import pb.managers.ServerManager;
 import pb.managers.endpoint.Endpoint;
+import pb.managers.endpoint.RateLimits;
+import pb.protocols.event.EventProtocol;
+import pb.protocols.event.EventSession;
+import pb.utils.AppendLog;
+import pb.utils.EventKey;
+import pb.utils.RankedSet;
+import pb.utils.TrigramIndex;
 import pb.utils.Utils;
 
 /**
  * Simple index server to discover peers that have files.
+ * <br/>
+ * Index updates, peer updates and queries arrive on the threads of all of
+ * the client endpoints at once, so the index is kept in concurrent maps
+ * rather than behind locks of its own. Each file's peers are ranked in a
+ * set of their own, which is the only thing locked when a peer is added or
+ * seen, and a peer's rank is only ever raised, so an index update and a peer
+ * update that race end with the same rank whichever goes first. Queries
+ * read the index without locking.
+ * <br/>
+ * Given a data directory, the index survives a restart. Each index update
+ * and peer update is appended to a journal, see {@link pb.utils.AppendLog},
+ * and every so often the whole index is written to a snapshot and a new
+ * journal is started. On starting up the snapshot is loaded and only the
+ * journals written since it are replayed, rather than waiting for every
+ * peer to share its files again.
  * @author aaron
  *
  */
@@ -54,6 +85,39 @@ public class IndexServer {
 	 */
 	public static final String queryIndex = "QUERY_INDEX";
 	
+	/**
+	 * Emitted to query the index for keywords, with the hits sent back in
+	 * batches, see {@link #queryHits} and {@link #queryEnd}. The argument
+	 * must have the format "keyword,keyword,..."
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String queryStream = "QUERY_STREAM";
+	
+	/**
+	 * Remote procedure call to query the index for keywords, see
+	 * {@link pb.managers.endpoint.Endpoint#call(String, String)}. The argument
+	 * must have the format "keyword,keyword,..." and the result has one line
+	 * "host:port:filename" for each hit, or is the empty string if there are
+	 * no hits. Unlike {@link #queryIndex} the hits come back at once, and
+	 * several queries can be in progress on one connection. The hits must
+	 * fit in one message, so at most {@link #maxCallBytes} of them are given;
+	 * if some are left out the last line is "+N" instead, where N is the
+	 * number of hits left out, and all of them can be had from
+	 * {@link #queryStream}.
+	 */
+	public static final String queryIndexMethod = "queryIndex";
+	
+	/**
+	 * Remote procedure call for the peers that have a file. The argument is
+	 * the filename and the result has one line "host:port" for each of at
+	 * most {@link #maxPeers} peers, the most recently seen first, or is the
+	 * empty string if no peer has the file. A client can use it to try
+	 * another peer when the one given in a hit can't be reached.
+	 */
+	public static final String queryPeersMethod = "queryPeers";
+	
 	/**
 	 * Emitted to tell the index server that your peer is
 	 * available for other peers to connect to it. The argument
@@ -87,28 +151,191 @@ public class IndexServer {
 	 */
 	public static final String queryResponse = "QUERY_RESPONSE";
 	
+	/**
+	 * Emitted as a batch of hits for {@link #queryStream}. The argument has
+	 * one line "host:port:filename" for each hit, and is no longer than
+	 * {@link #hitBatchBytes} characters unless a single hit is.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String queryHits = "QUERY_HITS";
+	
+	/**
+	 * Emitted after the last batch of hits for {@link #queryStream}. The
+	 * argument is the number of hits that were sent, as a decimal string.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String queryEnd = "QUERY_END";
+	
 	/**
 	 * Emitted when the query was in error. No argument is given.
 	 */
 	public static final String queryError = "QUERY_ERROR";
 	
+	/**
+	 * Typed keys for the events above that carry a String argument.
+	 */
+	public static final EventKey<String> indexUpdateKey = EventKey.of(indexUpdate);
+	public static final EventKey<String> queryIndexKey = EventKey.of(queryIndex);
+	public static final EventKey<String> peerUpdateKey = EventKey.of(peerUpdate);
+	public static final EventKey<String> queryResponseKey = EventKey.of(queryResponse);
+	public static final EventKey<String> queryStreamKey = EventKey.of(queryStream);
+	public static final EventKey<String> queryHitsKey = EventKey.of(queryHits);
+	public static final EventKey<String> queryEndKey = EventKey.of(queryEnd);
+	
 	/**
 	 * Storage of the key value index
-	 * "filename" to list of "PeerIP:PeerPort" strings that have that file
+	 * "filename" to the "PeerIP:PeerPort" strings that have that file, ranked
+	 * by the last time the peer was seen, so that the most recent peer that
+	 * has the file is first.
 	 */
-	public static final Map<String,Set<String>> keyValueMap=new HashMap<>();
+	public static final Map<String,RankedSet<String>> keyValueMap=new ConcurrentHashMap<>();
 	
 	/**
 	 * Last time seen "PeerIP:PeerPort" to timestamp, the last time the peer has
 	 * been seen. We will use this to give the most recent peer that has the file.
 	 */
-	public static final Map<String,Long> lastTimeSeen=new HashMap<>();
+	public static final Map<String,Long> lastTimeSeen=new ConcurrentHashMap<>();
+	
+	/**
+	 * "PeerIP:PeerPort" to the filenames it has, so that its files can be
+	 * ranked again when it is seen.
+	 */
+	private static final Map<String,Set<String>> peerFiles=new ConcurrentHashMap<>();
+	
+	/**
+	 * The filenames of the key value index, for finding those that contain
+	 * a query term without testing every filename.
+	 */
+	public static final TrigramIndex filenameIndex=new TrigramIndex();
 	
 	/**
 	 * The default port number for the server.
 	 */
 	private static int port=Utils.indexServerPort; // default port number for the server
 	
+	/**
+	 * Queries per second taken from each client, on average, so that one
+	 * client can't keep the server busy sending hits to it. Zero for no limit.
+	 */
+	private static int queryRateLimit=10;
+	
+	/**
+	 * Most peers given for a file by {@link #queryPeersMethod}.
+	 */
+	private static int maxPeers=5;
+	
+	/**
+	 * Most bytes of hits given by {@link #queryIndexMethod}. The result is
+	 * escaped twice on its way, in the reply and in the event that carries
+	 * the reply, which can make it up to four times as long, so it is kept
+	 * well below the 65535 bytes that a message can be.
+	 */
+	private static int maxCallBytes=12*1024;
+
+	/**
+	 * Most characters of hits in one {@link #queryHits} event.
+	 */
+	private static int hitBatchBytes=2*1024;
+	
+	/**
+	 * Most events sent to a client that may wait to be acknowledged before
+	 * a query stops sending it hits, until half of them have been. With
+	 * {@link #hitBatchBytes} this bounds the hits that are on their way to
+	 * a client, which is also the most that a query sends before it lets
+	 * the other queries have a turn.
+	 */
+	private static int maxUnacknowledged=64;
+	
+	/**
+	 * Threads that send the hits of queries. Sending blocks while a client
+	 * is slow to read, so it is kept off the timer thread.
+	 */
+	private static int streamThreads=4;
+	
+	/**
+	 * ms between looks at whether a client whose connection dropped while
+	 * it was being sent hits has resumed its session, so that they can be
+	 * sent on the new connection.
+	 */
+	private static int resumeCheckInterval=1000;
+	
+	private static final ThreadPoolExecutor hitStreamer=new ThreadPoolExecutor(streamThreads,
+			streamThreads,60,TimeUnit.SECONDS,new LinkedBlockingQueue<>(),(task)->{
+		Thread thread=new Thread(task,"HitStream");
+		thread.setDaemon(true);
+		return thread;
+	});
+	static {
+		hitStreamer.allowCoreThreadTimeOut(true);
+	}
+	
+	/**
+	 * Directory the index is kept in, or null to keep it in memory only.
+	 */
+	private static Path dataDir=null;
+	
+	/**
+	 * The index updates and peer updates since the last snapshot, in the
+	 * file "index-N.log" where N is the generation, or null when the index
+	 * is kept in memory only.
+	 */
+	private static volatile AppendLog journal=null;
+	
+	/**
+	 * Generation of the journal.
+	 */
+	private static long generation=0;
+	
+	/**
+	 * Held to update the index and the journal together, and exclusively
+	 * to start a new journal.
+	 */
+	private static final ReentrantReadWriteLock journalLock=new ReentrantReadWriteLock();
+	
+	/**
+	 * Most ms that an update may be in memory before it is on the disk. A
+	 * killed server loses none, since it is in the page cache already.
+	 */
+	private static int syncInterval=1000;
+	
+	/**
+	 * ms between snapshots of the index, taken if there were updates.
+	 */
+	private static int snapshotInterval=60000;
+	
+	/**
+	 * The file of the snapshot in the data directory.
+	 */
+	private static final String snapshotFile="index.snapshot";
+	
+	/**
+	 * Kinds of record in the journal and the snapshot, followed by
+	 * "host:port:filename", "time host:port" and the generation of the
+	 * first journal that the snapshot does not include, respectively.
+	 */
+	private static final char indexRecord='I';
+	private static final char peerRecord='P';
+	private static final char generationRecord='G';
+	
+	/**
+	 * Writes the journal to the disk, including each of its regions once it
+	 * is full, and takes the snapshots, one at a time, since any of these
+	 * can wait on the disk for long enough to hold up the timer or updates.
+	 */
+	private static final ThreadPoolExecutor journalWriter=new ThreadPoolExecutor(1,1,
+			60,TimeUnit.SECONDS,new LinkedBlockingQueue<>(),(task)->{
+		Thread thread=new Thread(task,"IndexSnapshot");
+		thread.setDaemon(true);
+		return thread;
+	});
+	static {
+		journalWriter.allowCoreThreadTimeOut(true);
+	}
+	
 
 	/**
 	 * Update the index with the filename and peerport.
@@ -116,82 +343,436 @@ public class IndexServer {
 	 * @param peerport
 	 */
 	private static void indexUpdate(String filename,String peerport) {
-		synchronized(keyValueMap) {
-			if(!keyValueMap.containsKey(filename)) {
-				keyValueMap.put(filename, new HashSet<String>());
+		journal(indexRecord+peerport+":"+filename, ()->addToIndex(filename,peerport));
+	}
+	
+	/**
+	 * Add the filename and peerport to the index.
+	 * @param filename
+	 * @param peerport
+	 */
+	private static void addToIndex(String filename,String peerport) {
+		RankedSet<String> possiblepeers=keyValueMap.get(filename);
+		if(possiblepeers==null) {
+			RankedSet<String> created=new RankedSet<String>();
+			possiblepeers=keyValueMap.putIfAbsent(filename, created);
+			if(possiblepeers==null) {
+				possiblepeers=created;
+				filenameIndex.add(filename);
 			}
-			Set<String> possiblepeers=keyValueMap.get(filename);
-			possiblepeers.add(peerport);
 		}
+		// before reading the time, so that a peer update from now on ranks it
+		peerFiles.computeIfAbsent(peerport, (p)->ConcurrentHashMap.newKeySet()).add(filename);
+		Long seen=lastTimeSeen.get(peerport);
+		// a peer that has not been seen yet goes after those that have
+		possiblepeers.raise(peerport, seen==null?0:seen);
 	}
 	
 	/**
-	 * Transmit a response for each hit. Return the peer that has the file
-	 * and that was the most recently seen, to try and make sure its still
-	 * online.
-	 * @param hits
-	 * @param client
+	 * The hits of a query that are still to be sent to a client. They are
+	 * sent as fast as the client acknowledges them, see
+	 * {@link pb.protocols.event.EventProtocol#whenAcknowledged(int, pb.protocols.ICallback)},
+	 * by the threads of {@link #hitStreamer}. If the connection drops then
+	 * they are sent on the connection that the client resumes its session
+	 * on, if it does.
 	 */
-	private static void transmitHits(List<String> hits,Endpoint client) {
-		if(hits.isEmpty()) {
-			log.info("Sending blank query response");
-			client.emit(queryResponse, "");
-			return;
+	private static class HitStream {
+		final Iterator<String> hits;
+		
+		/**
+		 * The event protocol of the connection the hits are sent on.
+		 */
+		EventProtocol events;
+		
+		/**
+		 * Whether hits are sent in batches, for {@link #queryStream}, or one
+		 * at a time, for {@link #queryIndex}.
+		 */
+		final boolean batched;
+		
+		int sent=0;
+		
+		HitStream(List<String> hits,EventProtocol events,boolean batched) {
+			this.hits=hits.iterator();
+			this.events=events;
+			this.batched=batched;
 		}
-		String hit = hits.remove(0);
-		synchronized(keyValueMap) {
-			synchronized(lastTimeSeen) {
-				if(keyValueMap.containsKey(hit)) {
-					List<String> peers = new ArrayList<String>(keyValueMap.get(hit));
-					Collections.sort(peers,
-					new Comparator<String>() {
-						@Override
-						public int compare(String o1, String o2) {
-							// sort largest to smallest
-							return lastTimeSeen.get(o2).compareTo(lastTimeSeen.get(o1));
-						}
-					});
-					log.info("Sending query response: "+peers.get(0)+":"+hit);
-					client.emit(queryResponse, peers.get(0)+":"+hit);
+		
+		/**
+		 * Transmit hits until the client has too many to acknowledge, or a
+		 * window of them has been sent, then carry on when it has
+		 * acknowledged some of them, after any other queries that are
+		 * waiting. Return the peer that has the file and that was the most
+		 * recently seen, to try and make sure its still online.
+		 */
+		void transmit() {
+			if(!resumed()) return;
+			Endpoint client = events.getEndpoint();
+			StringBuilder batch = new StringBuilder();
+			int batchBytes = 0;
+			int window = maxUnacknowledged*hitBatchBytes;
+			int bytes = 0;
+			while(hits.hasNext() && !events.stopped && events.getOutstanding()<=maxUnacknowledged
+					&& bytes<window) {
+				String hit = hits.next();
+				String peer = mostRecentPeer(hit);
+				if(peer==null) continue;
+				String response = peer+":"+hit;
+				int size = response.getBytes(StandardCharsets.UTF_8).length+1;
+				sent++;
+				bytes += size;
+				if(!batched) {
+					client.emit(queryResponseKey, response);
+					continue;
+				}
+				if(batchBytes>0 && batchBytes+size>hitBatchBytes) {
+					client.emit(queryHitsKey, batch.toString());
+					batch.setLength(0);
+					batchBytes=0;
 				}
+				if(batchBytes>0) batch.append('\n');
+				batch.append(response);
+				batchBytes += size;
+			}
+			// sent on the connection the session resumes on, if it has dropped
+			if(batchBytes>0) client.emit(queryHitsKey, batch.toString());
+			if(hits.hasNext()) {
+				events.whenAcknowledged(maxUnacknowledged/2, ()->hitStreamer.execute(this::transmit));
+				return;
+			}
+			log.info("Sent "+sent+" query responses");
+			if(batched) {
+				client.emit(queryEndKey, Integer.toString(sent));
+			} else {
+				client.emit(queryResponseKey, "");
 			}
 		}
-		Utils.getInstance().setTimeout(()->{
-			transmitHits(hits,client);
-		}, 100); // transmit 10 hits per second... no real bandwidth control here.
+		
+		/**
+		 * If the connection has dropped then move on to the connection that
+		 * the session has resumed on, or look again in a while if it has yet
+		 * to resume.
+		 * @return true if there is a connection to send the hits on, false
+		 * if the hits will be sent later or not at all because the session
+		 * has ended
+		 */
+		boolean resumed() {
+			while(events.stopped) {
+				EventSession session = events.getSession();
+				EventProtocol carrier = session.getCarrier();
+				if(carrier==null || carrier==events) {
+					if(session.isEnded()) {
+						log.info("Gave up sending query responses, the session has ended after "
+								+sent);
+					} else {
+						Utils.getInstance().setTimeout(()->hitStreamer.execute(this::transmit),
+								resumeCheckInterval);
+					}
+					return false;
+				}
+				events = carrier;
+			}
+			return true;
+		}
+	}
+	
+	/**
+	 * @param filename
+	 * @return the peer that has the file and that was the most recently seen,
+	 * or null if no peer has the file
+	 */
+	private static String mostRecentPeer(String filename) {
+		RankedSet<String> peers=keyValueMap.get(filename);
+		return peers==null?null:peers.first();
+	}
+	
+	/**
+	 * @param filename
+	 * @param k
+	 * @return at most k peers that have the file, the most recently seen first
+	 */
+	private static List<String> mostRecentPeers(String filename,int k) {
+		RankedSet<String> peers=keyValueMap.get(filename);
+		return peers==null?new ArrayList<String>():peers.top(k);
+	}
+	
+	/**
+	 * Generate hits and return them to the client.
+	 * @param query a comma separated list of terms to search for
+	 * @param batched whether to send the hits in batches
+	 */
+	private static void queryIndex(String query,Endpoint client,boolean batched) {
+		EventProtocol events = (EventProtocol) client.getProtocol(EventProtocol.protocolName);
+		if(events==null) return; // the client has gone
+		HitStream stream = new HitStream(findHits(query),events,batched);
+		// not on the endpoint thread, which must carry on reading acknowledgements
+		hitStreamer.execute(stream::transmit);
+	}
+	
+	/**
+	 * Answer a query made as a remote procedure call, with all of the hits
+	 * at once, or as many as fit in a message.
+	 * @param query a comma separated list of terms to search for
+	 * @return a line "host:port:filename" for each hit, then a line "+N" if
+	 * N hits were left out
+	 */
+	private static String queryIndexCall(String query) {
+		List<String> responses = new ArrayList<>();
+		List<String> hits = findHits(query);
+		int bytes = 0;
+		for(int i=0;i<hits.size();i++) {
+			String peer = mostRecentPeer(hits.get(i));
+			if(peer==null) continue;
+			String response = peer+":"+hits.get(i);
+			bytes += response.getBytes(StandardCharsets.UTF_8).length+1;
+			if(bytes>maxCallBytes) {
+				responses.add("+"+(hits.size()-i));
+				break;
+			}
+			responses.add(response);
+		}
+		return String.join("\n",responses);
+	}
+	
+	/**
+	 * Answer a query for the peers that have a file, made as a remote
+	 * procedure call.
+	 * @param filename
+	 * @return a line "host:port" for each peer
+	 */
+	private static String queryPeersCall(String filename) {
+		return String.join("\n",mostRecentPeers(filename,maxPeers));
 	}
 	
 	/**
-	 * Generate hits and return them to the client. Not a very
-	 * efficient search mechanism, but ok for testing.
 	 * @param query a comma separated list of terms to search for
+	 * @return the filenames that contain any of the terms
 	 */
-	private static void queryIndex(String query,Endpoint client) {
-		String[] terms = query.split(",");
+	private static List<String> findHits(String query) {
 		Set<String> hits = new HashSet<>();
-		List<String> filenames;
-		synchronized(keyValueMap) {
-			filenames=new ArrayList<String>(keyValueMap.keySet());
+		for(String term : query.split(",")) {
+			hits.addAll(filenameIndex.find(term));
 		}
+		return new ArrayList<String>(hits);
+	}
+	
+	/**
+	 * Keep a time stamp of the last time we've seen this peer, and rank the
+	 * peer first for the files it has. Multiple endpoints could call this at
+	 * the same time.
+	 * @param peerport
+	 */
+	private static void peerUpdate(String peerport) {
+		long now=Instant.now().toEpochMilli();
+		journal(peerRecord+(now+" "+peerport), ()->peerSeen(peerport,now));
+	}
+	
+	/**
+	 * Keep the time the peer was seen, unless it was seen later, and rank
+	 * the peer at that time for the files it has.
+	 * @param peerport
+	 * @param time
+	 */
+	private static void peerSeen(String peerport,long time) {
+		long seen=lastTimeSeen.merge(peerport, time, Math::max);
+		Set<String> filenames=peerFiles.get(peerport);
+		if(filenames==null) return;
 		for(String filename : filenames) {
-			String filelower=filename.toLowerCase();
-			for(String term : terms) {
-				if(filelower.contains(term.toLowerCase())) {
-					hits.add(filename);
+			keyValueMap.get(filename).raise(peerport, seen);
+		}
+	}
+	
+	/**
+	 * Append an update to the journal, if there is one, and make it.
+	 * @param record the update as a journal record
+	 * @param update makes the update
+	 */
+	private static void journal(String record,Runnable update) {
+		journalLock.readLock().lock();
+		try {
+			AppendLog current=journal;
+			if(current!=null) {
+				try {
+					current.append(record);
+				} catch (IOException e) {
+					log.severe("could not append to the journal, the update will not survive a restart: "
+							+e.getMessage());
 				}
 			}
+			update.run();
+		} finally {
+			journalLock.readLock().unlock();
 		}
-		transmitHits(new ArrayList<String>(hits),client);
 	}
 	
 	/**
-	 * Keep a time stamp of the last time we've seen this peer. Multiple
-	 * endpoints could call this at the same time.
-	 * @param peerport
+	 * Make an update read from the journal or the snapshot, without
+	 * appending it to the journal again.
+	 * @param record
 	 */
-	private static void peerUpdate(String peerport) {
-		synchronized(lastTimeSeen) {
-			lastTimeSeen.put(peerport, Instant.now().toEpochMilli());
+	private static void replay(String record) {
+		String data=record.substring(1);
+		switch(record.charAt(0)) {
+		case indexRecord:
+			String[] parts=data.split(":",3);
+			if(parts.length==3) addToIndex(parts[2],parts[0]+":"+parts[1]);
+			break;
+		case peerRecord:
+			int space=data.indexOf(' ');
+			peerSeen(data.substring(space+1),Long.parseLong(data.substring(0,space)));
+			break;
+		case generationRecord:
+			generation=Long.parseLong(data);
+			break;
+		default:
+			log.warning("unknown journal record: "+record);
+		}
+	}
+	
+	/**
+	 * @param generation
+	 * @return the file of the journal of the generation
+	 */
+	private static Path journalPath(long generation) {
+		return dataDir.resolve("index-"+generation+".log");
+	}
+	
+	/**
+	 * @return the generations of the journals in the data directory, in order
+	 * @throws IOException
+	 */
+	private static List<Long> journalGenerations() throws IOException {
+		List<Long> generations=new ArrayList<>();
+		try(DirectoryStream<Path> files=Files.newDirectoryStream(dataDir, "index-*.log")) {
+			for(Path file : files) {
+				String name=file.getFileName().toString();
+				try {
+					generations.add(Long.parseLong(name.substring(6,name.length()-4)));
+				} catch (NumberFormatException e) {
+					log.warning("not a journal: "+file);
+				}
+			}
+		}
+		generations.sort(null);
+		return generations;
+	}
+	
+	/**
+	 * Load the index from the data directory, from the snapshot and then the
+	 * journals written since it, and carry on appending to the last journal.
+	 * @throws IOException
+	 */
+	private static void recover() throws IOException {
+		long start=Instant.now().toEpochMilli();
+		Files.createDirectories(dataDir);
+		generation=0;
+		AppendLog.read(dataDir.resolve(snapshotFile), IndexServer::replay);
+		long first=generation;
+		List<Long> generations=journalGenerations();
+		generations.removeIf((journalGeneration)->journalGeneration<first); // in the snapshot already
+		for(int i=0;i<generations.size()-1;i++) {
+			AppendLog.read(journalPath(generations.get(i)), IndexServer::replay);
+		}
+		if(!generations.isEmpty()) generation=generations.get(generations.size()-1);
+		journal=new AppendLog(journalPath(generation), IndexServer::replay, journalWriter);
+		log.info("loaded "+keyValueMap.size()+" files and "+lastTimeSeen.size()+" peers from "
+				+dataDir+" in "+(Instant.now().toEpochMilli()-start)+" ms");
+	}
+	
+	/**
+	 * Write the whole index to a new snapshot, if it was updated since the
+	 * last one, i.e. the journal is not empty, and remove the journals that it includes. Updates carry on
+	 * meanwhile, in a new journal, and since making an update again changes
+	 * nothing, those that are in the snapshot as well do no harm.
+	 */
+	private static synchronized void snapshot() {
+		long start=Instant.now().toEpochMilli();
+		AppendLog previous;
+		long first;
+		try {
+			journalLock.writeLock().lock();
+			try {
+				previous=journal;
+				if(previous==null || previous.length()==0) return;
+				generation++;
+				journal=new AppendLog(journalPath(generation), null, journalWriter);
+				first=generation;
+			} finally {
+				journalLock.writeLock().unlock();
+			}
+			previous.close();
+			Path temporary=dataDir.resolve(snapshotFile+".tmp");
+			Files.deleteIfExists(temporary);
+			AppendLog snapshot=new AppendLog(temporary, null);
+			snapshot.append(generationRecord+Long.toString(first));
+			// peers first, so that each file's peers are ranked as they are loaded
+			for(Map.Entry<String,Long> seen : lastTimeSeen.entrySet()) {
+				snapshot.append(peerRecord+(seen.getValue()+" "+seen.getKey()));
+			}
+			for(Map.Entry<String,RankedSet<String>> entry : keyValueMap.entrySet()) {
+				for(String peerport : entry.getValue().members()) {
+					snapshot.append(indexRecord+peerport+":"+entry.getKey());
+				}
+			}
+			snapshot.close();
+			Files.move(temporary, dataDir.resolve(snapshotFile),
+					StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			for(long journalGeneration : journalGenerations()) {
+				if(journalGeneration<first) Files.delete(journalPath(journalGeneration));
+			}
+			log.info("snapshot of "+keyValueMap.size()+" files taken in "
+					+(Instant.now().toEpochMilli()-start)+" ms");
+		} catch (IOException e) {
+			log.severe("could not take a snapshot of the index, the journals are kept: "+e.getMessage());
+		}
+	}
+	
+	/**
+	 * Write the journal to the disk every {@link #syncInterval} ms, on the
+	 * {@link #journalWriter} so that the timer is not held up. A snapshot
+	 * writes the journal that it replaces to the disk itself, so a sync
+	 * that waits behind one is only late for the updates made meanwhile.
+	 */
+	private static void syncJournal() {
+		Utils.getInstance().setTimeout(()->{
+			if(journal==null) return;
+			journalWriter.execute(()->{
+				AppendLog current=journal;
+				if(current==null) return;
+				current.force();
+				syncJournal();
+			});
+		}, syncInterval);
+	}
+	
+	/**
+	 * Take a snapshot every {@link #snapshotInterval} ms, on the
+	 * {@link #journalWriter} so that the timer is not held up.
+	 */
+	private static void scheduleSnapshot() {
+		Utils.getInstance().setTimeout(()->{
+			if(journal==null) return;
+			journalWriter.execute(()->{
+				snapshot();
+				scheduleSnapshot();
+			});
+		}, snapshotInterval);
+	}
+	
+	/**
+	 * Stop journalling, writing the journal to the disk.
+	 */
+	private static void closeJournal() {
+		journalLock.writeLock().lock();
+		try {
+			AppendLog current=journal;
+			if(current==null) return;
+			journal=null;
+			current.close();
+		} catch (IOException e) {
+			log.warning("could not close the journal: "+e.getMessage());
+		} finally {
+			journalLock.writeLock().unlock();
 		}
 	}
 	
@@ -213,6 +794,9 @@ public class IndexServer {
         Options options = new Options();
         options.addOption("port",true,"server port, an integer");
         options.addOption("password",true,"password for server");
+        options.addOption("ratelimit",true,"queries per second taken from each client, an integer, 0 for no limit");
+        options.addOption("maxpeers",true,"most peers given for a file, an integer of at least 1");
+        options.addOption("datadir",true,"directory to keep the index in, so that it survives a restart");
         
        
         CommandLineParser parser = new DefaultParser();
@@ -241,14 +825,55 @@ public class IndexServer {
         	serverManager = new ServerManager(port);
         }
         
+        if(cmd.hasOption("ratelimit")){
+        	try{
+        		queryRateLimit = Integer.parseInt(cmd.getOptionValue("ratelimit"));
+			} catch (NumberFormatException e){
+				System.out.println("-ratelimit requires a number of queries, parsed: "+cmd.getOptionValue("ratelimit"));
+				help(options);
+			}
+        }
+        
+        if(cmd.hasOption("maxpeers")){
+        	try{
+        		maxPeers = Integer.parseInt(cmd.getOptionValue("maxpeers"));
+			} catch (NumberFormatException e){
+				System.out.println("-maxpeers requires a number of peers, parsed: "+cmd.getOptionValue("maxpeers"));
+				help(options);
+			}
+        	if(maxPeers<1) {
+        		System.out.println("-maxpeers requires at least one peer, parsed: "+cmd.getOptionValue("maxpeers"));
+        		help(options);
+        	}
+        }
+        
+        if(cmd.hasOption("datadir")){
+        	dataDir = Paths.get(cmd.getOptionValue("datadir"));
+        	try {
+        		recover();
+        	} catch (IOException e) {
+        		System.out.println("Could not load the index from "+dataDir+": "+e.getMessage());
+        		System.exit(-1);
+        	}
+        	syncJournal();
+        	scheduleSnapshot();
+        	Runtime.getRuntime().addShutdownHook(new Thread(IndexServer::closeJournal));
+        }
+        
+        if(queryRateLimit>0) {
+        	// a client that queries too fast is told with EventProtocol.rateLimited
+        	serverManager.rateLimits = new RateLimits()
+        		.limitEvent(queryIndex, queryRateLimit, 2*queryRateLimit)
+        		.limitEvent(queryStream, queryRateLimit, 2*queryRateLimit);
+        }
+        
         // event handlers
         // we must define the event handler callbacks BEFORE starting
         // the server, so that we don't miss any events.
         serverManager.on(ServerManager.sessionStarted,(eventArgs)->{
         	Endpoint endpoint = (Endpoint)eventArgs[0];
         	log.info("Client session started: "+endpoint.getOtherEndpointId());
-        	endpoint.on(indexUpdate, (eventArgs2)->{
-        		String update = (String) eventArgs2[0];
+        	endpoint.on(indexUpdateKey, (update)->{
         		log.info("Received index update: "+update);
         		String[] parts=update.split(":",3);
         		if(parts.length!=3) {
@@ -257,15 +882,24 @@ public class IndexServer {
 	        		String peerport = parts[0]+":"+parts[1];
 	        		indexUpdate(parts[2],peerport);
         		}
-        	}).on(queryIndex, (eventArgs2)->{
-        		String query = (String) eventArgs2[0];
+        	}).on(queryIndexKey, (query)->{
         		log.info("Received query: "+query);
-        		queryIndex(query,endpoint);
-        	}).on(peerUpdate, (eventArgs2)->{
-        		String peerport = (String) eventArgs2[0];
+        		queryIndex(query,endpoint,false);
+        	}).on(queryStreamKey, (query)->{
+        		log.info("Received streamed query: "+query);
+        		queryIndex(query,endpoint,true);
+        	}).on(peerUpdateKey, (peerport)->{
         		log.info("Received peer update: "+peerport);
         		peerUpdate(peerport);
         	});
+        	endpoint.serve(queryIndexMethod, (query)->{
+        		log.info("Received query call: "+query);
+        		return queryIndexCall(query);
+        	});
+        	endpoint.serve(queryPeersMethod, (filename)->{
+        		log.info("Received peers call: "+filename);
+        		return queryPeersCall(filename);
+        	});
         }).on(ServerManager.sessionStopped,(eventArgs)->{
         	Endpoint endpoint = (Endpoint)eventArgs[0];
         	log.info("Client session ended: "+endpoint.getOtherEndpointId());
@@ -16,6 +16,7 @@ import org.apache.commons.cli.ParseException;
 import pb.managers.IOThread;
 import pb.managers.ServerManager;
 import pb.managers.endpoint.Endpoint;
+import pb.managers.endpoint.RateLimits;
 import pb.utils.Utils;
 
 /**
@@ -107,6 +108,9 @@ public class WhiteboardServer {
         Options options = new Options();
         options.addOption("port",true,"server port, an integer");
         options.addOption("password",true,"password for server");
+        options.addOption("retryafter",true,"ms clients should wait before reconnecting after a forced shutdown, an integer");
+        options.addOption("pipeline",true,"messages queued between reading, decoding and dispatching on each connection, an integer");
+        options.addOption("ratelimit",true,"boards shared or unshared per second by each client, an integer, 0 for no limit (the default)");
         
        
         CommandLineParser parser = new DefaultParser();
@@ -135,6 +139,44 @@ public class WhiteboardServer {
         	serverManager = new ServerManager(port);
         }
         
+        if(cmd.hasOption("retryafter")){
+        	try{
+        		serverManager.retryAfter = Integer.parseInt(cmd.getOptionValue("retryafter"));
+			} catch (NumberFormatException e){
+				System.out.println("-retryafter requires a number of ms, parsed: "+cmd.getOptionValue("retryafter"));
+				help(options);
+			}
+        }
+        
+        if(cmd.hasOption("pipeline")){
+        	try{
+        		int queueSize = Integer.parseInt(cmd.getOptionValue("pipeline"));
+        		serverManager.decodeQueueSize = queueSize;
+        		serverManager.dispatchQueueSize = queueSize;
+			} catch (NumberFormatException e){
+				System.out.println("-pipeline requires a number of messages, parsed: "+cmd.getOptionValue("pipeline"));
+				help(options);
+			}
+        }
+        
+        int shareRateLimit = 0;
+        if(cmd.hasOption("ratelimit")){
+        	try{
+        		shareRateLimit = Integer.parseInt(cmd.getOptionValue("ratelimit"));
+			} catch (NumberFormatException e){
+				System.out.println("-ratelimit requires a number of boards, parsed: "+cmd.getOptionValue("ratelimit"));
+				help(options);
+			}
+        }
+        if(shareRateLimit>0) {
+        	// each share is sent on to every other client, so a client sharing
+        	// too fast is told with EventProtocol.rateLimited, which older
+        	// clients ignore, so the limit is only on when asked for
+        	serverManager.rateLimits = new RateLimits()
+        		.limitEvent(shareBoard, shareRateLimit, 2*shareRateLimit)
+        		.limitEvent(unshareBoard, shareRateLimit, 2*shareRateLimit);
+        }
+        
         /**
          * TODO: Put some server related code here.
          */
@@ -151,12 +193,7 @@ public class WhiteboardServer {
 			endpoint.on(shareBoard,(eventArgs2)->{
 				String name = (String)eventArgs2[0];
 				log.info("Peer wants to share board "+name);
-				for (Endpoint e: listEndpoint.values()){
-					if(e != endpoint){
-						e.emit(WhiteboardServer.sharingBoard, name);
-					}
-					
-				}
+				serverManager.broadcast(WhiteboardServer.sharingBoard, name, endpoint);
 				if(!sharedBoardList.contains(name)){
 					sharedBoardList.add(name);
 				}
@@ -167,11 +204,7 @@ public class WhiteboardServer {
 			}).on(unshareBoard,(eventArgs2)->{
 				String name = (String)eventArgs2[0];
 				log.info("Peer wants to unshare board "+name);
-				for (Endpoint e: listEndpoint.values()){
-					if(e != endpoint){
-						e.emit(WhiteboardServer.unsharingBoard, name);
-					}
-				}
+				serverManager.broadcast(WhiteboardServer.unsharingBoard, name, endpoint);
 				if(!sharedBoardList.contains(name)){
 					sharedBoardList.remove(name);
 				}
@@ -29,11 +29,15 @@ import javax.swing.JPanel;
 import javax.swing.SwingUtilities;
 
 import pb.WhiteboardServer;
+import pb.managers.BackoffReconnectPolicy;
 import pb.managers.ClientManager;
 import pb.managers.IOThread;
 import pb.managers.PeerManager;
 import pb.managers.ServerManager;
 import pb.managers.endpoint.Endpoint;
+import pb.protocols.event.EventProtocol;
+import pb.protocols.event.EventRequest;
+import pb.utils.EventKey;
 import pb.utils.Utils;
 
 
@@ -163,6 +167,23 @@ public class WhiteboardApp {
 	 */
 	public static final String boardError = "BOARD_ERROR";
 	
+	/**
+	 * Typed keys for the board events that are sent for every stroke, undo and
+	 * clear, so that they are dispatched without hashing the event name or
+	 * allocating a varargs array.
+	 */
+	public static final EventKey<String> boardDataKey = EventKey.of(boardData);
+	public static final EventKey<String> boardPathUpdateKey = EventKey.of(boardPathUpdate);
+	public static final EventKey<String> boardUndoUpdateKey = EventKey.of(boardUndoUpdate);
+	public static final EventKey<String> boardClearUpdateKey = EventKey.of(boardClearUpdate);
+	
+	static {
+		// stroke level updates are frequent and the board version check already
+		// catches lost or out of order updates, so they don't need an EventReply
+		EventProtocol.sendUnacknowledged(boardPathUpdate, boardPathAccepted,
+				boardUndoUpdate, boardUndoAccepted, boardClearUpdate, boardClearAccepted);
+	}
+	
 	/**
 	 * White board map from board name to board object 
 	 */
@@ -194,6 +215,12 @@ public class WhiteboardApp {
 
 	private static Map<String,Set<Endpoint>> peerListenList = new HashMap<>();
 
+	/**
+	 * Most connections to other peers kept open at once, beyond which the
+	 * idle connections to owners of boards we no longer listen to are closed.
+	 */
+	private static final int maxPeerSessions = 8;
+
 	private static ArrayList<Endpoint> endpointList = new ArrayList<>();
 
 	
@@ -221,6 +248,9 @@ public class WhiteboardApp {
 		
 
 		peerManager = new PeerManager(pPort);
+		// one connection per shared board, so don't hold a thread for each
+		peerManager.sharedScheduler = true;
+		peerManager.maxClientSessions = maxPeerSessions;
 		
 		try{
 			//P1
@@ -235,32 +265,18 @@ public class WhiteboardApp {
 					String name = (String)eventArgs2[0];
 					if(whiteboards.containsKey(name)){
 						String data = whiteboards.get(name).toString();
-						endpoint.emit(boardData, data);
+						endpoint.emit(boardDataKey, data);
 						log.info("Sending boardData: ");
 					}
-				}).on(boardPathUpdate, (eventArgs2)->{
+				}).on(boardPathUpdateKey, (data)->{
 					System.out.println("Inside P1 boardPathUpdate");
-					String data = (String)eventArgs2[0];
 					String updatePath = getBoardPaths(data);
 					long version = getBoardVersion(data) - 1;
 					Whiteboard remoteBoard = whiteboards.get(getBoardName(data));
 					if(remoteBoard.addPath(new WhiteboardPath(updatePath), version)){
 						drawSelectedWhiteboard();
 						if (!remoteBoard.isRemote()){
-							String name = remoteBoard.getName();
-							String nameVersion = remoteBoard.getNameAndVersion();
-							if(peerListenList.containsKey(name)){
-								Set<Endpoint> endpointList = peerListenList.get(name); 
-								for(Endpoint e: endpointList){
-									if(e !=endpoint){
-										e.emit(boardPathUpdate,nameVersion+"%"+updatePath);
-									}
-									else{
-										log.info("Not sending to endpoint "+endpoint.getOtherEndpointId());
-									}
-									
-								}
-							}
+							relayPathUpdate(endpoint, remoteBoard);
 							endpoint.emit(boardPathAccepted, data);
 						}
 					}
@@ -269,8 +285,7 @@ public class WhiteboardApp {
 					}
 				}).on(boardPathAccepted, (eventArgs2)->{ 
 						log.info("Path accepted by peer");	
-				}).on(boardUndoUpdate, (eventArgs2)->{
-					String data = (String)eventArgs2[0];
+				}).on(boardUndoUpdateKey, (data)->{
 					long version = getBoardVersion(data) - 1;
 					Whiteboard remoteBoard = whiteboards.get(getBoardName(data));
 					if(remoteBoard.undo(version)){
@@ -282,7 +297,7 @@ public class WhiteboardApp {
 								Set<Endpoint> endpointList = peerListenList.get(name); 
 								for(Endpoint e: endpointList){
 									if(e != endpoint){
-										e.emit(boardUndoUpdate,nameVersion);
+										e.emit(boardUndoUpdateKey,nameVersion);
 									}
 									
 								}
@@ -295,8 +310,7 @@ public class WhiteboardApp {
 					}
 				}).on(boardUndoAccepted, (eventArgs2)->{ 
 					log.info("Path Undo accepted by peer");
-				}).on(boardClearUpdate, (eventArgs2)->{
-					String data = (String)eventArgs2[0];
+				}).on(boardClearUpdateKey, (data)->{
 					long version = getBoardVersion(data) - 1;
 					Whiteboard remoteBoard = whiteboards.get(getBoardName(data));
 					if(remoteBoard.clear(version)){
@@ -308,7 +322,7 @@ public class WhiteboardApp {
 								Set<Endpoint> endpointList = peerListenList.get(name); 
 								for(Endpoint e: endpointList){
 									if(e!=endpoint){
-										e.emit(boardClearUpdate,nameVersion);
+										e.emit(boardClearUpdateKey,nameVersion);
 									}
 									
 								}
@@ -352,9 +366,12 @@ public class WhiteboardApp {
 			peerManager.start();
 
 		ClientManager clientManager = peerManager.connect(serverPort, serverHost);
+		// keep trying while the whiteboard server fails over or restarts
+		clientManager.reconnectPolicy = new BackoffReconnectPolicy(1000,30000,BackoffReconnectPolicy.unlimited);
 		clientManager.on(ClientManager.sessionStarted,(eventArgs)->{
         	serverEndpoint = (Endpoint)eventArgs[0];
 			log.info("Peer started: "+serverEndpoint.getOtherEndpointId());
+			serverEndpoint.evictable = false; // boards are shared at any time
 
         	serverEndpoint.on(WhiteboardServer.sharingBoard,(eventArgs2)->{
 				String name = (String)eventArgs2[0];
@@ -371,12 +388,12 @@ public class WhiteboardApp {
 						
 						Endpoint peerEndpoint = (Endpoint)eventArgs3[0];
 						endpointList.add(peerEndpoint);
+						peerEndpoint.evictable = false; // until we stop listening
 						peerEndpoint.emit(listenBoard, name);
 						log.info("Listening to: "+name);
 						peerEndpoint.emit(getBoardData,name);
 						log.info("Requesting Board Data: "+name);
-						peerEndpoint.on(boardData, (eventArgs4)->{
-							String data = (String)eventArgs4[0];
+						peerEndpoint.on(boardDataKey, (data)->{
 							log.info("Received board Data:");
 							if(!whiteboards.containsKey(getBoardName(data))){
 								Whiteboard sharedBoard = new Whiteboard(name, true);
@@ -388,33 +405,19 @@ public class WhiteboardApp {
 								whiteboards.get(getBoardName(data)).whiteboardFromString(getBoardName(data), getBoardData(data));
 								drawSelectedWhiteboard();
 							}
-						}).on(boardPathUpdate, (eventArgs4)->{
+						}).on(boardPathUpdateKey, (data)->{
 							System.out.println("Inside P2 boardPathUpdate");
-							String data = (String)eventArgs4[0];
 							String updatePath = getBoardPaths(data);
 							long version = getBoardVersion(data) - 1;
 							Whiteboard remoteBoard = whiteboards.get(getBoardName(data));
 							if(remoteBoard.addPath(new WhiteboardPath(updatePath), version)){
 								drawSelectedWhiteboard();
 								if (!remoteBoard.isRemote()){
-									String nameVersion = remoteBoard.getNameAndVersion();
-									if(peerListenList.containsKey(remoteBoard.getName())){
-										Set<Endpoint> endpointList = peerListenList.get(remoteBoard.getName()); 
-										for(Endpoint e: endpointList){
-											if(e !=peerEndpoint){
-												e.emit(boardPathUpdate,nameVersion+"%"+updatePath);
-											}
-											else{
-												log.info("Not sending to endpoint "+e.getOtherEndpointId());
-											}
-											
-										}
-									}
+									relayPathUpdate(peerEndpoint, remoteBoard);
 									peerEndpoint.emit(boardPathAccepted, data);
 								}
 							}
-						}).on(boardUndoUpdate, (eventArgs4)->{
-							String data = (String)eventArgs4[0];
+						}).on(boardUndoUpdateKey, (data)->{
 							long version = getBoardVersion(data) - 1;
 							Whiteboard remoteBoard = whiteboards.get(getBoardName(data));
 							if(remoteBoard.undo(version)){
@@ -425,7 +428,7 @@ public class WhiteboardApp {
 										Set<Endpoint> endpointList = peerListenList.get(remoteBoard.getName()); 
 										for(Endpoint e: endpointList){
 											if(e != peerEndpoint){
-												e.emit(boardUndoUpdate,nameVersion);
+												e.emit(boardUndoUpdateKey,nameVersion);
 											}
 											else{
 												log.info("Not sending to endpoint "+e.getOtherEndpointId());
@@ -436,8 +439,7 @@ public class WhiteboardApp {
 									peerEndpoint.emit(boardUndoAccepted, data);
 								}
 							}
-						}).on(boardClearUpdate, (eventArgs4)->{
-							String data = (String)eventArgs4[0];
+						}).on(boardClearUpdateKey, (data)->{
 							long version = getBoardVersion(data) - 1;
 							Whiteboard remoteBoard = whiteboards.get(getBoardName(data));
 							if(remoteBoard.clear(version)){
@@ -448,7 +450,7 @@ public class WhiteboardApp {
 										Set<Endpoint> endpointList = peerListenList.get(remoteBoard.getName()); 
 										for(Endpoint e: endpointList){
 											if(e!=peerEndpoint){
-												e.emit(boardClearUpdate,nameVersion);
+												e.emit(boardClearUpdateKey,nameVersion);
 											}
 											
 										}
@@ -488,6 +490,14 @@ public class WhiteboardApp {
 				catch(Exception e){
 
 				}
+			}).on(EventProtocol.rateLimited,(eventArgs2)->{
+				String eventName = (String)eventArgs2[0];
+				log.warning("Whiteboard server is busy and did not take: "+eventName);
+				SwingUtilities.invokeLater(()->{
+					JOptionPane.showMessageDialog(sharedCheckbox,
+							"The whiteboard server is busy and did not take the change to sharing, try again in a moment.",
+							"Whiteboard server busy",JOptionPane.WARNING_MESSAGE);
+				});
 			});
         }).on(ClientManager.sessionStopped, (eventArgs)->{
 			Endpoint endpoint= (Endpoint)eventArgs[0];
@@ -587,7 +597,29 @@ public class WhiteboardApp {
 	 ******/
 	
 	// From whiteboard server
-	
+
+	/**
+	 * Pass the path update being delivered on an endpoint on to the other
+	 * listeners of the board, with the board's new version, without encoding
+	 * the path again. Only the listeners' peers are sent the update, it is
+	 * not emitted to the callbacks on their endpoints here.
+	 * @param from the endpoint the update came from
+	 * @param board
+	 */
+	private void relayPathUpdate(Endpoint from, Whiteboard board){
+		EventProtocol eventProtocol = (EventProtocol) from.getProtocol(EventProtocol.protocolName);
+		Set<Endpoint> listeners = peerListenList.get(board.getName());
+		if(eventProtocol==null || eventProtocol.getReceivedEvent()==null || listeners==null) return;
+		EventRequest update = eventProtocol.getReceivedEvent().relay(board.getNameAndVersion());
+		for(Endpoint e: listeners){
+			if(e==from) continue;
+			EventProtocol listenerProtocol = (EventProtocol) e.getProtocol(EventProtocol.protocolName);
+			if(listenerProtocol!=null){
+				listenerProtocol.sendEvent(new EventRequest(update));
+			}
+		}
+	}
+
 	public void addListener(Endpoint endpoint, String boardName){
 		Set<Endpoint> listenerEndpoint = new HashSet<>();
 
@@ -673,6 +705,7 @@ public class WhiteboardApp {
 					for(Endpoint e:endpointList){
 						if(e.getOtherEndpointId().equals(ipPort)){
 							e.emit(unlistenBoard,name);
+							e.evictable = true;
 							break;
 						}
 					}
@@ -722,7 +755,7 @@ public class WhiteboardApp {
 					String nameVersion = selectedBoard.getNameAndVersion();
 					for(Endpoint e:endpointList){
 						if(e.getOtherEndpointId().equals(ipPort)){
-							e.emit(boardPathUpdate,nameVersion+"%"+currentPath);
+							e.emit(boardPathUpdateKey,nameVersion+"%"+currentPath);
 							break;
 						}
 					}
@@ -733,7 +766,7 @@ public class WhiteboardApp {
 					if(peerListenList.containsKey(name)){
 						Set<Endpoint> endpointList = peerListenList.get(name); 
 						for(Endpoint e: endpointList){
-							e.emit(boardPathUpdate,nameVersion+"%"+currentPath);
+							e.emit(boardPathUpdateKey,nameVersion+"%"+currentPath);
 						}
 					}
 				}
@@ -763,7 +796,7 @@ public class WhiteboardApp {
 					String nameVersion = selectedBoard.getNameAndVersion();
 					for(Endpoint e:endpointList){
 						if(e.getOtherEndpointId().equals(ipPort)){
-							e.emit(boardClearUpdate,nameVersion);
+							e.emit(boardClearUpdateKey,nameVersion);
 							break;
 						}	
 					}
@@ -774,7 +807,7 @@ public class WhiteboardApp {
 					if(peerListenList.containsKey(name)){
 						Set<Endpoint> endpointList = peerListenList.get(name); 
 						for(Endpoint e: endpointList){
-							e.emit(boardClearUpdate,nameVersion);
+							e.emit(boardClearUpdateKey,nameVersion);
 						}
 					}
 				}
@@ -801,7 +834,7 @@ public class WhiteboardApp {
 					
 					for(Endpoint e:endpointList){
 						if(e.getOtherEndpointId().equals(ipPort)){
-							e.emit(boardUndoUpdate,nameVersion);
+							e.emit(boardUndoUpdateKey,nameVersion);
 							break;
 						}	
 					}
@@ -812,7 +845,7 @@ public class WhiteboardApp {
 					if(peerListenList.containsKey(name)){
 						Set<Endpoint> endpointList = peerListenList.get(name); 
 						for(Endpoint e: endpointList){
-							e.emit(boardUndoUpdate,nameVersion);
+							e.emit(boardUndoUpdateKey,nameVersion);
 						}
 					}
 				}
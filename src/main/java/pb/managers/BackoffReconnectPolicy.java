@@ -0,0 +1,65 @@
+package pb.managers;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential backoff with full jitter. The n'th retry waits a random time
+ * between 0 and the smaller of {@link #maxDelay} and {@link #baseDelay}*2^n,
+ * so that when a server goes away its clients do not all come back at the
+ * same moment. If the server asked the clients to wait before coming back,
+ * the random time is added to that wait, spreading the clients out after it.
+ * 
+ * @see {@link pb.managers.ClientManager#reconnectPolicy}
+ * @author aaron
+ *
+ */
+public class BackoffReconnectPolicy implements IReconnectPolicy {
+	
+	/**
+	 * Value of {@link #maxRetries} to never give up.
+	 */
+	public static final int unlimited = -1;
+	
+	/**
+	 * The ms that the first retry waits, at most.
+	 */
+	public int baseDelay = 1000;
+	
+	/**
+	 * The most ms that any retry waits, not counting a wait asked for by the
+	 * server.
+	 */
+	public int maxDelay = 30000;
+	
+	/**
+	 * The number of retries before giving up, or {@link #unlimited}.
+	 */
+	public int maxRetries = 10;
+	
+	/**
+	 * A policy with the default delays and number of retries.
+	 */
+	public BackoffReconnectPolicy() {
+	}
+	
+	/**
+	 * 
+	 * @param baseDelay ms that the first retry waits, at most
+	 * @param maxDelay most ms that any retry waits
+	 * @param maxRetries the number of retries before giving up, or {@link #unlimited}
+	 */
+	public BackoffReconnectPolicy(int baseDelay, int maxDelay, int maxRetries) {
+		this.baseDelay=baseDelay;
+		this.maxDelay=maxDelay;
+		this.maxRetries=maxRetries;
+	}
+
+	@Override
+	public long nextDelay(int attempt, long retryAfter) {
+		if(maxRetries!=unlimited && attempt>=maxRetries) return -1;
+		// stop doubling once past the max, so the shift can't overflow
+		long ceiling = attempt<31 ? Math.min(maxDelay,(long)baseDelay<<attempt) : maxDelay;
+		long jitter = ceiling>0 ? ThreadLocalRandom.current().nextLong(ceiling+1) : 0;
+		return Math.max(retryAfter,0)+jitter;
+	}
+}
@@ -0,0 +1,45 @@
+package pb.managers;
+
+/**
+ * The outcome of a broadcast by the server manager, once the event has been
+ * handed to every endpoint it was sent to.
+ * 
+ * @see {@link pb.managers.ServerManager#broadcast(String, String, java.util.function.Predicate)}
+ * @author aaron
+ *
+ */
+public class BroadcastResult {
+	private final int delivered;
+	private final int failed;
+	
+	/**
+	 * @param delivered number of endpoints the event was sent or batched on
+	 * @param failed number of endpoints the event could not be sent on
+	 */
+	public BroadcastResult(int delivered, int failed) {
+		this.delivered=delivered;
+		this.failed=failed;
+	}
+	
+	/**
+	 * 
+	 * @return the number of endpoints the event was sent or batched on
+	 */
+	public int getDelivered() {
+		return delivered;
+	}
+	
+	/**
+	 * 
+	 * @return the number of endpoints whose connection had dropped, where
+	 * the event was kept for the session to resume or given up
+	 */
+	public int getFailed() {
+		return failed;
+	}
+	
+	@Override
+	public String toString() {
+		return delivered+" delivered, "+failed+" failed";
+	}
+}
@@ -2,9 +2,13 @@ package pb.managers;
 
 
 import java.io.IOException;
-import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.logging.Logger;
 
 import pb.managers.endpoint.Endpoint;
@@ -12,14 +16,32 @@ import pb.managers.endpoint.ProtocolAlreadyRunning;
 import pb.protocols.IRequestReplyProtocol;
 import pb.protocols.Protocol;
 import pb.protocols.event.EventProtocol;
+import pb.protocols.event.EventSession;
 import pb.protocols.event.IEventProtocolHandler;
 import pb.protocols.keepalive.IKeepAliveProtocolHandler;
 import pb.protocols.keepalive.KeepAliveProtocol;
 import pb.protocols.session.ISessionProtocolHandler;
 import pb.protocols.session.SessionProtocol;
+import pb.utils.ResolverCache;
+import pb.utils.Utils;
 
 /**
  * Manages the connection to the server and the client's state.
+ * <br/>
+ * Normally the client manager is a thread of its own, that connects, waits
+ * for the connection to end and retries as needed. With
+ * {@link #sharedScheduler} set it instead does all of that from callbacks:
+ * the endpoint thread makes the connection, and retries are scheduled with
+ * {@link pb.utils.Utils#setTimeout(pb.protocols.ICallback, long)}, so that no
+ * thread is held per client manager beyond the endpoint's own. Use
+ * {@link #awaitTermination()} rather than join() to wait for it to finish in
+ * that case.
+ * <br/>
+ * An idle session can be given up with {@link #suspendSession()}, to free the
+ * connection, and the client manager then waits to be used again: the next
+ * event emitted on the endpoint connects again, starting a new session, and
+ * the event is sent on the new endpoint once {@link #sessionStarted} has
+ * been emitted for it.
  * 
  * @see {@link pb.managers.Manager}
  * @see {@link pb.managers.endpoint.Endpoint}
@@ -38,7 +60,11 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	 */
 	
 	/**
-	 * Emitted when a session on an endpoint is ready for use.
+	 * Emitted when a session on an endpoint is ready for use. This is also
+	 * emitted when the session is resumed on a new endpoint after the
+	 * connection dropped, in which case
+	 * {@link pb.protocols.session.SessionProtocol#isResumed()} is true and
+	 * events missed while disconnected are replayed on the new endpoint.
 	 * <ul>
 	 * <li>{@code args[0] instanceof Endpoint}</li>
 	 * </ul>
@@ -88,6 +114,104 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	 */
 	private boolean shouldWeRetry=false;
 	
+	/**
+	 * The event stream of the current session, kept across reconnects so
+	 * that the session can be resumed.
+	 */
+	private volatile EventSession eventSession=null;
+	
+	/**
+	 * Whether to ask for the KeepAlive protocol to run on the session. Short
+	 * lived connections can do without it, since the event acknowledgements
+	 * already tell when the server is not responding.
+	 */
+	public volatile boolean keepAlive=true;
+	
+	/**
+	 * How long to wait between attempts to connect, and when to give up.
+	 */
+	public volatile IReconnectPolicy reconnectPolicy=new BackoffReconnectPolicy();
+	
+	/**
+	 * Whether a session started on the current connection, in which case
+	 * the next retry is the first one again.
+	 */
+	private volatile boolean sessionHasStarted=false;
+	
+	/**
+	 * The ms the server asked us to wait before connecting again.
+	 */
+	private volatile long retryAfter=0;
+	
+	/**
+	 * Number of attempts to connect since a session last started. Only one
+	 * thread makes an attempt at a time, but on a shared scheduler it is not
+	 * the same thread each time.
+	 */
+	private volatile int attempt=0;
+	
+	/**
+	 * Whether the current endpoint has connected.
+	 */
+	private volatile boolean connected=false;
+	
+	/**
+	 * Time in ms to wait for a connection to be made before trying again.
+	 * Zero waits for as long as the operating system does.
+	 */
+	public volatile int connectTimeout=10000;
+	
+	/**
+	 * Looks up the host, shared with the other client managers of a
+	 * {@link PeerManager}.
+	 */
+	public volatile ResolverCache resolver=new ResolverCache();
+	
+	/**
+	 * Run the connection from callbacks on a shared scheduler rather than
+	 * on a thread of this client manager. Must be set before {@link #start()}.
+	 */
+	public volatile boolean sharedScheduler=false;
+	
+	/**
+	 * Released when the client manager has finished, i.e. will not connect again.
+	 */
+	private final CountDownLatch terminated = new CountDownLatch(1);
+	
+	/**
+	 * The endpoint of the current attempt to connect.
+	 */
+	private volatile Endpoint currentEndpoint=null;
+	
+	/**
+	 * Whether the session is being stopped by {@link #suspendSession()}.
+	 */
+	private volatile boolean suspending=false;
+	
+	// Suspended state, guarded by parkedEvents.
+	
+	/**
+	 * Events emitted on a suspended endpoint, as {eventName,args...}, to be
+	 * sent once a new session has started.
+	 */
+	private final List<Object[]> parkedEvents = new ArrayList<>();
+	
+	/**
+	 * Whether the session has been suspended and is waiting to be used again.
+	 */
+	private boolean parked=false;
+	
+	/**
+	 * Whether a suspended session was used and we are connecting again.
+	 */
+	private boolean reconnecting=false;
+	
+	/**
+	 * The endpoint of the session that has started, if any, where events
+	 * emitted on suspended endpoints are sent.
+	 */
+	private Endpoint liveEndpoint=null;
+	
 	/**
 	 * Initialise the client manage with a host and port to connect to.
 	 * @param host
@@ -102,30 +226,258 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	
 	@Override
 	public void shutdown() {
+		synchronized(parkedEvents) {
+			if(parked) {
+				// nothing is connected, just stop waiting to be used again
+				parked=false;
+				parkedEvents.notifyAll();
+				if(sharedScheduler) terminated.countDown();
+				return;
+			}
+		}
 		sessionProtocol.stopSession();
 	}
 	
+	/**
+	 * Stop the session to free the connection, connecting again when the
+	 * endpoint is next used, see {@link ClientManager}. The client manager
+	 * does not emit {@link #sessionStopped} in this case.
+	 * @return false if there is no session to suspend
+	 */
+	public boolean suspendSession() {
+		SessionProtocol sessionProtocol=this.sessionProtocol;
+		if(!isSessionActive() || suspending || sessionProtocol==null) return false;
+		log.info("suspending idle session with "+host+":"+port);
+		suspending=true;
+		sessionProtocol.stopSession();
+		return true;
+	}
+	
+	/**
+	 * 
+	 * @return true if a session has started and not stopped or been suspended
+	 */
+	public boolean isSessionActive() {
+		return liveEndpoint()!=null;
+	}
+	
+	/**
+	 * 
+	 * @return when an event was last sent or received in the current session,
+	 * in ms, or {@link Long#MAX_VALUE} if there is none
+	 */
+	public long getLastActivity() {
+		Endpoint endpoint = liveEndpoint();
+		EventProtocol eventProtocol = endpoint==null?null:
+			(EventProtocol) endpoint.getProtocol(EventProtocol.protocolName);
+		return eventProtocol!=null?eventProtocol.getLastActivity():Long.MAX_VALUE;
+	}
+	
+	/**
+	 * Whether the current session can be suspended without anyone noticing:
+	 * no events have been sent or received for a while, the application has
+	 * not said that it is waiting for events, see {@link Endpoint#evictable},
+	 * and no remote procedure calls are waiting, see {@link Endpoint#isInUse()}.
+	 * @param now the time in ms
+	 * @param idleTimeout ms without events
+	 * @return true if the session is idle
+	 */
+	public boolean isIdle(long now, int idleTimeout) {
+		Endpoint endpoint = liveEndpoint();
+		if(endpoint==null || suspending) return false;
+		EventProtocol eventProtocol = (EventProtocol) endpoint.getProtocol(EventProtocol.protocolName);
+		if(eventProtocol==null) return false;
+		return now-eventProtocol.getLastActivity()>=idleTimeout && endpoint.evictable && !endpoint.isInUse();
+	}
+	
+	/**
+	 * 
+	 * @return the endpoint of the session that has started, or null
+	 */
+	private Endpoint liveEndpoint() {
+		synchronized(parkedEvents) {
+			return liveEndpoint;
+		}
+	}
+	
+	/**
+	 * 
+	 * @return true if the client manager has finished
+	 */
+	public boolean hasTerminated() {
+		return terminated.getCount()==0;
+	}
+	
+	/**
+	 * Start connecting, either on a thread of this client manager or, with
+	 * {@link #sharedScheduler} set, on the endpoint thread.
+	 */
+	@Override
+	public synchronized void start() {
+		if(sharedScheduler) {
+			connectOnSharedScheduler();
+		} else {
+			super.start();
+		}
+	}
+	
+	/**
+	 * Wait for the client manager to finish, whether or not it runs on
+	 * a shared scheduler.
+	 * @throws InterruptedException
+	 */
+	public void awaitTermination() throws InterruptedException {
+		terminated.await();
+	}
+	
 	@Override
 	public void run() {
-		int retries=10;
-		while(retries-- > 0) {
-			if(attemptToConnect(host,port)) {
-				// the connection ended in error, so let's just
-				// try to get it back up, transparently to the
-				// higher layer
+		do {
+			while(attemptToConnect(host,port)) {
+				// the connection ended in error, or the server asked us to
+				// come back later, so let's just try to get it back up,
+				// transparently to the higher layer
+				long delay = nextRetryDelay();
+				if(delay<0) break;
 				try {
-					Thread.sleep(5000); // short pause before retrying
+					Thread.sleep(delay);
 				} catch (InterruptedException e) {
 					continue;
-				} 
-			} else {
-				// connection ended cleanly, so we can terminate this manager
+				}
+			}
+		} while(awaitUse());
+		// connection ended cleanly, or we gave up, so we can terminate this manager
+		terminated.countDown();
+	}
+	
+	/**
+	 * If the session was suspended, wait until it is used again.
+	 * @return true if we should connect again
+	 */
+	private boolean awaitUse() {
+		synchronized(parkedEvents) {
+			while(parked) {
+				try {
+					parkedEvents.wait();
+				} catch (InterruptedException e) {
+					parked=false;
+				}
+			}
+			return reconnecting;
+		}
+	}
+	
+	/**
+	 * An event was emitted on an endpoint whose session was suspended. Send
+	 * it on the current session if one has started, or otherwise keep it
+	 * and connect again if we are not already.
+	 * @param args the event name followed by its arguments
+	 */
+	private void emitWhileSuspended(Object[] args) {
+		boolean reconnect=false;
+		synchronized(parkedEvents) {
+			if(liveEndpoint!=null) {
+				liveEndpoint.emit((String)args[0],Arrays.copyOfRange(args,1,args.length));
 				return;
 			}
+			if(!parked && !reconnecting) {
+				log.warning("session has stopped, dropping event: "+args[0]);
+				return;
+			}
+			parkedEvents.add(args);
+			if(parked) {
+				parked=false;
+				reconnecting=true;
+				reconnect=true;
+				parkedEvents.notifyAll();
+			}
 		}
-		log.severe("no more retries, giving up");
-		
+		if(reconnect) {
+			log.info("suspended session used again, reconnecting to "+host+":"+port);
+			if(sharedScheduler) connectOnSharedScheduler();
+		}
+	}
+	
+	/**
+	 * 
+	 * @return ms to wait before trying to connect again, or a negative number
+	 * if we have given up
+	 */
+	private long nextRetryDelay() {
+		if(sessionHasStarted) attempt=0; // the last attempt worked
+		long delay = reconnectPolicy.nextDelay(attempt++,retryAfter);
+		retryAfter=0;
+		if(delay<0) {
+			log.severe("no more retries, giving up");
+			giveUp();
+		} else {
+			log.info("retrying in "+delay+" ms");
+		}
+		return delay;
+	}
+	
+	/**
+	 * Stop trying to connect, ending the session and dropping the events
+	 * that were waiting for it.
+	 */
+	private void giveUp() {
+		if(eventSession!=null) eventSession.end();
+		synchronized(parkedEvents) {
+			if(!parkedEvents.isEmpty()) {
+				log.warning("dropping "+parkedEvents.size()+" events emitted while suspended");
+			}
+			parkedEvents.clear();
+			reconnecting=false;
+		}
+	}
+	
+	/**
+	 * Reset the state of the connection before an attempt to connect.
+	 */
+	private void beginAttempt() {
+		shouldWeRetry=false; // may be set to true by another thread
+						     // if errors occur on the connection
+		sessionHasStarted=false;
+		connected=false;
+		suspending=false;
+		log.info("attempting to connect to "+host+":"+port);
+	}
+	
+	/**
+	 * Attempt to connect without holding a thread, the endpoint thread
+	 * makes the connection and {@link #endpointTerminated(Endpoint)} carries
+	 * on from there.
+	 */
+	private void connectOnSharedScheduler() {
+		beginAttempt();
+		Endpoint endpoint = new Endpoint(host,port,resolver,this);
+		endpoint.connectTimeout=connectTimeout;
+		currentEndpoint=endpoint;
+		endpoint.start();
+	}
+	
+	/**
+	 * The endpoint thread has finished. When running on a shared scheduler,
+	 * schedule the next attempt to connect if there should be one.
+	 * @param endpoint
+	 */
+	@Override
+	public void endpointTerminated(Endpoint endpoint) {
+		if(!sharedScheduler) return; // run() is waiting for the endpoint
+		if(endpoint!=currentEndpoint) return; // a suspended session connected again
+		long delay = shouldWeRetry ? nextRetryDelay() : -1;
+		if(delay<0) {
+			synchronized(parkedEvents) {
+				if(parked) return; // waiting to be used again
+			}
+			terminated.countDown();
+			return;
+		}
+		Utils.getInstance().setTimeout(()->{
+			connectOnSharedScheduler();
+		}, delay);
 	}
+	
 	/**
 	 * Attempt to connect.
 	 * @param host
@@ -133,12 +485,12 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	 * @return true if we should retry to connect again or false otherwise
 	 */
 	private boolean attemptToConnect(final String host,final int port) {
-		shouldWeRetry=false; // may be set to true by another thread
-						     // if errors occur on the connection
-		log.info("attempting to connect to "+host+":"+port);
+		beginAttempt();
 		try {
-			socket=new Socket(InetAddress.getByName(host),port);
+			socket=new Socket();
+			socket.connect(new InetSocketAddress(resolver.resolve(host),port),connectTimeout);
 			Endpoint endpoint = new Endpoint(socket,this);
+			currentEndpoint=endpoint;
 			endpoint.start();
 
 			try {
@@ -149,6 +501,8 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 				endpoint.close();
 			}
 		} catch (UnknownHostException e) {
+			log.severe("could not find the host, not retrying: "+host);
+			giveUp();
 			return false; // we wont retry
 		} catch (IOException e1) {
 			shouldWeRetry=true;
@@ -164,13 +518,17 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	}
 	
 	/**
-	 * The endpoint is ready to use.
+	 * The endpoint is ready to use. The session start request says which
+	 * protocols we want, and they are all started once the reply comes back.
 	 * @param endpoint
 	 */
 	@Override
 	public void endpointReady(Endpoint endpoint) {
 		log.info("connection with server established");
+		connected=true;
 		sessionProtocol = new SessionProtocol(endpoint,this);
+		if(eventSession!=null) sessionProtocol.resumeSession(eventSession);
+		if(!keepAlive) sessionProtocol.setProtocols(List.of(EventProtocol.protocolName));
 		try {
 			// we need to add it to the endpoint before starting it
 			endpoint.handleProtocol(sessionProtocol);
@@ -179,15 +537,6 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 			// hmmm, so the server is requesting a session start?
 			log.warning("server initiated the session protocol... weird");
 		}
-		KeepAliveProtocol keepAliveProtocol = new KeepAliveProtocol(endpoint,this);
-		try {
-			// we need to add it to the endpoint before starting it
-			endpoint.handleProtocol(keepAliveProtocol);
-			keepAliveProtocol.startAsClient();
-		} catch (ProtocolAlreadyRunning e) {
-			// hmmm, so the server is requesting a session start?
-			log.warning("server initiated the session protocol... weird");
-		}
 	}
 	
 	/**
@@ -205,6 +554,18 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	 */
 	@Override
 	public void endpointDisconnectedAbruptly(Endpoint endpoint) {
+		if(!connected) {
+			// the endpoint could not connect, there is no session to report on
+			endpoint.close();
+			if(endpoint.getConnectError() instanceof UnknownHostException) {
+				log.severe("could not find the host, not retrying: "+host);
+				giveUp();
+				return; // we wont retry, as attemptToConnect does not
+			}
+			log.warning("could not connect to "+host+":"+port);
+			shouldWeRetry=true;
+			return;
+		}
 		log.severe("connection with server terminated abruptly");
 		localEmit(sessionError,endpoint);
 		endpoint.close();
@@ -252,17 +613,59 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	 */
 	@Override
 	public void sessionStarted(Endpoint endpoint) {
-		log.info("session has started with server");
+		SessionProtocol sessionProtocol=(SessionProtocol) endpoint.getProtocol(SessionProtocol.protocolName);
+		if(sessionProtocol.isResumed()) {
+			log.info("session has resumed with server");
+		} else {
+			log.info("session has started with server");
+		}
+		eventSession=sessionProtocol.getEventSession();
+		sessionHasStarted=true;
 		
-		EventProtocol eventProtocol = new EventProtocol(endpoint,this);
-		try {
-			endpoint.handleProtocol(eventProtocol);
-			eventProtocol.startAsServer();
-		} catch (ProtocolAlreadyRunning e) {
-			// hmmm... already requested by the client
+		if(sessionProtocol.hasProtocol(KeepAliveProtocol.protocolName)) {
+			KeepAliveProtocol keepAliveProtocol = new KeepAliveProtocol(endpoint,this);
+			try {
+				// we need to add it to the endpoint before starting it
+				endpoint.handleProtocol(keepAliveProtocol);
+				keepAliveProtocol.startAsClient();
+			} catch (ProtocolAlreadyRunning e) {
+				// hmmm, so the server is requesting a keep alive?
+				log.warning("server initiated the keep alive protocol... weird");
+			}
+		}
+		
+		if(sessionProtocol.hasProtocol(EventProtocol.protocolName)) {
+			EventProtocol eventProtocol = new EventProtocol(endpoint,this);
+			eventProtocol.setSession(eventSession);
+			sessionProtocol.configure(eventProtocol);
+			try {
+				endpoint.handleProtocol(eventProtocol);
+				eventProtocol.startAsServer();
+			} catch (ProtocolAlreadyRunning e) {
+				// hmmm... already requested by the client
+			}
+			if(sessionProtocol.isResumed()) {
+				eventProtocol.replay(sessionProtocol.getPeerLastSeq());
+			}
 		}
 		
 		localEmit(sessionStarted,endpoint);
+		
+		// the callbacks for the session are in place, tell the server which
+		// events it need not send
+		EventProtocol startedEventProtocol=(EventProtocol) endpoint.getProtocol(EventProtocol.protocolName);
+		if(startedEventProtocol!=null) startedEventProtocol.advertiseInterest();
+		
+		// send what was emitted while the session was suspended, now that
+		// the callbacks for the new endpoint are in place
+		synchronized(parkedEvents) {
+			for(Object[] args : parkedEvents) {
+				endpoint.emit((String)args[0],Arrays.copyOfRange(args,1,args.length));
+			}
+			parkedEvents.clear();
+			reconnecting=false;
+			liveEndpoint=endpoint;
+		}
 	}
 
 	/**
@@ -272,11 +675,49 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void sessionStopped(Endpoint endpoint) {
 		log.info("session has stopped with server");
+		eventSession=null; // nothing to resume
+		boolean suspended=suspending;
+		synchronized(parkedEvents) {
+			liveEndpoint=null;
+			if(suspended) {
+				// keep whatever is emitted on the endpoint from now on, and
+				// connect again when it is
+				suspending=false;
+				parked=true;
+				endpoint.on("*", (args)->{
+					emitWhileSuspended(args);
+				});
+			}
+		}
+		if(suspended) {
+			endpoint.close();
+			return;
+		}
+		SessionProtocol sessionProtocol=(SessionProtocol) endpoint.getProtocol(SessionProtocol.protocolName);
+		if(sessionProtocol!=null && sessionProtocol.getRetryAfter()>0) {
+			// the server wants us back once it is ready again
+			log.info("server asked us to connect again in "+sessionProtocol.getRetryAfter()+" ms");
+			retryAfter=sessionProtocol.getRetryAfter();
+			shouldWeRetry=true;
+		}
 		localEmit(sessionStopped,endpoint);
 		endpoint.close(); // this will stop all the protocols as well
 	}
 	
 
+	/**
+	 * Servers resume sessions, not clients.
+	 * @param endpoint
+	 * @param sessionId
+	 * @param lastSeq
+	 * @return null always
+	 */
+	@Override
+	public EventSession sessionResuming(Endpoint endpoint, String sessionId, long lastSeq) {
+		log.warning("server asked to resume a session");
+		return null;
+	}
+	
 	/**
 	 * The endpoint has requested a protocol to start. If the protocol
 	 * is allowed then the manager should tell the endpoint to handle it
@@ -0,0 +1,23 @@
+package pb.managers;
+
+/**
+ * Decides how long a {@link pb.managers.ClientManager} waits before trying
+ * to connect again after its connection failed, and when it gives up.
+ * 
+ * @see {@link pb.managers.BackoffReconnectPolicy}
+ * @author aaron
+ *
+ */
+public interface IReconnectPolicy {
+	
+	/**
+	 * 
+	 * @param attempt the number of attempts made since the last session
+	 * started, starting at 0 for the first retry
+	 * @param retryAfter ms the server asked us to wait before coming back,
+	 * or 0 if it did not say
+	 * @return ms to wait before the next attempt, or a negative number to
+	 * give up
+	 */
+	public long nextDelay(int attempt, long retryAfter);
+}
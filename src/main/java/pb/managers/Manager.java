@@ -53,6 +53,15 @@ public class Manager extends Eventable implements IProtocolHandler, IEndpointHan
 		
 	}
 
+	/**
+	 * The endpoint thread has finished.
+	 * @param endpoint
+	 */
+	@Override
+	public void endpointTerminated(Endpoint endpoint) {
+		
+	}
+	
 	/**
 	 * An invalid message was received over the endpoint.
 	 * @param endpoint
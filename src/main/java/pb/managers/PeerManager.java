@@ -1,16 +1,29 @@
 package pb.managers;
 
 import java.net.UnknownHostException;
-import java.util.HashSet;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 
 import pb.managers.endpoint.Endpoint;
+import pb.utils.ResolverCache;
+import pb.utils.Utils;
 
 
 
 /**
  * The Peer Manager manages both a number of ClientManagers and a ServerManager.
+ * <br/>
+ * With {@link #maxClientSessions} set, the sessions of the client managers
+ * that have been idle the longest are suspended when there are too many,
+ * see {@link ClientManager#suspendSession()}. They connect again when they
+ * are next used. Client managers that have terminated are forgotten.
  * @author aaron
  *
  */
@@ -78,13 +91,51 @@ public class PeerManager extends Manager {
 	 */
 	private int myServerPort;
 	
+	/**
+	 * Run the client managers for new connections on a shared scheduler,
+	 * rather than a thread each, see {@link ClientManager#sharedScheduler}.
+	 * Suits peers with many outgoing connections.
+	 */
+	public volatile boolean sharedScheduler=false;
+	
+	/**
+	 * Time in ms that the client managers wait for a connection to be made,
+	 * see {@link ClientManager#connectTimeout}.
+	 */
+	public volatile int connectTimeout=10000;
+	
+	/**
+	 * Host name lookups shared by all of the client managers, so that peers
+	 * announced together, and retries, look each host up just once.
+	 */
+	private final ResolverCache resolver=new ResolverCache();
+	
+	/**
+	 * Most client sessions that are kept open at once, zero for no limit.
+	 * Only idle sessions are suspended to keep to it, so there may be more
+	 * for a while.
+	 */
+	public volatile int maxClientSessions=0;
+	
+	/**
+	 * Time in ms without events after which a client session is idle, if
+	 * nothing else is waiting on its endpoint, see
+	 * {@link ClientManager#isIdle(long, int)}.
+	 */
+	public volatile int idleTimeout=60000;
+	
+	/**
+	 * Whether another look for idle sessions is scheduled.
+	 */
+	private final AtomicBoolean evictionPending=new AtomicBoolean(false);
+	
 	/**
 	 * Initialize with a port for the server manager for this peer
 	 * to use.
 	 * @param myServerPort
 	 */
 	public PeerManager(int myServerPort) {
-		clientManagers = new HashSet<>();
+		clientManagers = ConcurrentHashMap.newKeySet();
 		this.myServerPort=myServerPort;
 	}
 	
@@ -107,9 +158,13 @@ public class PeerManager extends Manager {
 	 */
 	public ClientManager connect(int serverPort,String host) throws UnknownHostException, InterruptedException {
 		ClientManager clientManager = new ClientManager(host,serverPort);
+		clientManager.sharedScheduler=sharedScheduler;
+		clientManager.connectTimeout=connectTimeout;
+		clientManager.resolver=resolver;
 		clientManagers.add(clientManager);
 		clientManager.on(ClientManager.sessionStarted, (args)->{
 			Endpoint client = (Endpoint)args[0];
+			evictIdleClientManagers(clientManager);
 			clientManager.emit(peerStarted, client,clientManager);
 		}).on(ClientManager.sessionStopped, (args)->{
 			Endpoint client = (Endpoint)args[0];
@@ -121,6 +176,50 @@ public class PeerManager extends Manager {
 		return clientManager;
 	}
 	
+	/**
+	 * Suspend the sessions of the least recently used idle client managers
+	 * while there are more than {@link #maxClientSessions}, and look again
+	 * after {@link #idleTimeout} if there are still too many.
+	 * @param started a client manager whose session is starting, or null
+	 */
+	private void evictIdleClientManagers(ClientManager started) {
+		int max=maxClientSessions;
+		if(max<=0) return;
+		clientManagers.removeIf((clientManager)->clientManager.hasTerminated());
+		// take the times once, they change while we sort
+		Map<ClientManager,Long> lastActivity=new HashMap<>();
+		clientManagers.forEach((clientManager)->{
+			if(clientManager!=started && clientManager.isSessionActive()) {
+				lastActivity.put(clientManager,clientManager.getLastActivity());
+			}
+		});
+		int excess=lastActivity.size()+(started!=null?1:0)-max;
+		if(excess<=0) return;
+		List<ClientManager> leastRecentlyUsed=new ArrayList<>(lastActivity.keySet());
+		leastRecentlyUsed.sort((a,b)->Long.compare(lastActivity.get(a),lastActivity.get(b)));
+		long now=Instant.now().toEpochMilli();
+		for(ClientManager clientManager : leastRecentlyUsed) {
+			if(excess==0) break;
+			if(clientManager.isIdle(now,idleTimeout) && clientManager.suspendSession()) excess--;
+		}
+		if(excess>0 && evictionPending.compareAndSet(false,true)) {
+			log.info(excess+" client sessions over the limit, none idle yet");
+			Utils.getInstance().setTimeout(()->{
+				evictionPending.set(false);
+				evictIdleClientManagers(null);
+			}, idleTimeout);
+		}
+	}
+	
+	/**
+	 * 
+	 * @return the host name lookups shared by the client managers, e.g. to
+	 * change how long addresses are kept
+	 */
+	public ResolverCache getResolver() {
+		return resolver;
+	}
+	
 	/**
 	 * Close the server and all remaining connections.
 	 * We will do a graceful shutdown here, to allow any other peers that
@@ -163,7 +262,7 @@ public class PeerManager extends Manager {
 	public void joinWithClientManagers() {
 		clientManagers.forEach((clientManager)->{
 			try {
-				clientManager.join();
+				clientManager.awaitTermination();
 			} catch (InterruptedException e) {
 				log.warning("could not join with client manager");
 			}
@@ -2,20 +2,37 @@ package pb.managers;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
 import java.util.logging.Logger;
 
 import pb.managers.endpoint.Endpoint;
 import pb.managers.endpoint.ProtocolAlreadyRunning;
+import pb.managers.endpoint.RateLimits;
 import pb.protocols.IRequestReplyProtocol;
 import pb.protocols.Protocol;
 import pb.protocols.event.EventProtocol;
+import pb.protocols.event.EventRequest;
+import pb.protocols.event.EventSession;
 import pb.protocols.event.IEventProtocolHandler;
 import pb.protocols.keepalive.IKeepAliveProtocolHandler;
 import pb.protocols.keepalive.KeepAliveProtocol;
 import pb.protocols.session.ISessionProtocolHandler;
 import pb.protocols.session.SessionProtocol;
+import pb.utils.TopicTrie;
+import pb.utils.Utils;
 
 
 /**
@@ -39,7 +56,11 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	 */
 	
 	/**
-	 * Emitted when a session on an endpoint is ready for use.
+	 * Emitted when a session on an endpoint is ready for use. This is also
+	 * emitted when a client resumes its session on a new endpoint after the
+	 * connection dropped, in which case
+	 * {@link pb.protocols.session.SessionProtocol#isResumed()} is true and
+	 * events missed while disconnected are replayed on the new endpoint.
 	 * <ul>
 	 * <li>{@code args[0] instanceof Endpoint}</li>
 	 * </ul>
@@ -90,6 +111,53 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	 */
 	public static final String vaderShutdownServer="SERVER_VADER_SHUTDOWN";
 	
+	/**
+	 * Events that clients emit to use the topic broker, see
+	 * {@link #subscribe(Endpoint, String)} and {@link #publish(String, String, Endpoint)}.
+	 * They are only taken from clients when {@link #topicsEnabled} is set.
+	 */
+	
+	/**
+	 * Emitted by a client to subscribe to a topic, or to the topics under a
+	 * prefix, e.g. "boards/*".
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String subscribeTopic="SUBSCRIBE_TOPIC";
+	
+	/**
+	 * Emitted by a client to unsubscribe from what it subscribed to.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String unsubscribeTopic="UNSUBSCRIBE_TOPIC";
+	
+	/**
+	 * Emitted by a client to publish data to a topic, as made by
+	 * {@link #toTopicData(String, String)}. It is not sent back to the client
+	 * even if it is subscribed.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String publishTopic="PUBLISH_TOPIC";
+	
+	/**
+	 * Emitted to a client when data is published to a topic it is subscribed
+	 * to, as made by {@link #toTopicData(String, String)}.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String topicEvent="TOPIC_EVENT";
+	
+	/**
+	 * Separates the topic from the data in topic events.
+	 */
+	private static final String topicSeparator="%";
+	
 	
 	/**
 	 * The io thread accepts connections and informs the server manager
@@ -100,8 +168,9 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	/**
 	 * Keep a track of endpoints that
 	 * have not yet terminated, so that we can wait/ask/force for them to finish
-	 * before completely terminating. This object can be called by multiple
-	 * endpoint threads and this server manager thread; so synchronized is needed.
+	 * before completely terminating, and broadcast to them. This object can be
+	 * called by multiple endpoint threads and this server manager thread; so a
+	 * concurrent set is used, which can be iterated while it changes.
 	 */
 	private final Set<Endpoint> liveEndpoints;
 	
@@ -120,6 +189,85 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	 */
 	private volatile boolean vaderShutdown=false;
 	
+	/**
+	 * Sessions that have started, by session id, including those whose
+	 * connection dropped and that may still be resumed. Guarded by itself.
+	 */
+	private final Map<String,EventSession> sessions = new HashMap<>();
+	
+	/**
+	 * The endpoint each session is, or was last, running on. Guarded by sessions.
+	 */
+	private final Map<String,Endpoint> sessionEndpoints = new HashMap<>();
+	
+	/**
+	 * Time in ms that a session whose connection dropped is kept so that
+	 * the client can resume it.
+	 */
+	public int resumeTimeout = 60000;
+	
+	/**
+	 * Time in ms that clients are asked to wait before connecting again when
+	 * the server forces their sessions to stop, e.g. because it is about to
+	 * restart. Zero means clients are not asked to come back.
+	 */
+	public int retryAfter = 0;
+	
+	/**
+	 * Size of the queues between reading, decoding and dispatching messages
+	 * on each client endpoint, see {@link Endpoint#decodeQueueSize} and
+	 * {@link Endpoint#dispatchQueueSize}. Zero does all three on the
+	 * endpoint thread.
+	 */
+	public int decodeQueueSize = 0;
+	public int dispatchQueueSize = 0;
+	
+	/**
+	 * Limits on how fast each client endpoint takes messages from its
+	 * client, shared by all of them, or null for none.
+	 */
+	public volatile RateLimits rateLimits = null;
+	
+	/**
+	 * Number of threads that send broadcast events to the endpoints, see
+	 * {@link #broadcast(String, String, Predicate)}.
+	 */
+	public int broadcastThreads = Runtime.getRuntime().availableProcessors();
+	
+	/**
+	 * Whether clients can use the topic broker with events, e.g.
+	 * {@link #subscribeTopic}. Must be set before the server starts. The
+	 * server itself can subscribe endpoints and publish either way.
+	 */
+	public boolean topicsEnabled = false;
+	
+	/**
+	 * Most patterns that each client can subscribe to with
+	 * {@link #subscribeTopic}, so that one client can't fill the server
+	 * with subscriptions.
+	 */
+	public int maxTopicPatterns = 64;
+	
+	/**
+	 * Sends broadcast events, created on the first broadcast. Its threads
+	 * stop when they have been idle for a while.
+	 */
+	private ThreadPoolExecutor broadcaster = null;
+	
+	/**
+	 * The last broadcast event still being sent to each endpoint, so that
+	 * the next one is sent after it. Entries are removed once the event
+	 * has been sent. Updated while holding the lock on itself.
+	 */
+	private final Map<Endpoint,CompletableFuture<Boolean>> broadcastTails = new ConcurrentHashMap<>();
+	
+	/**
+	 * The topics each endpoint is subscribed to. An endpoint's subscriptions
+	 * are removed when it closes, so a client subscribes again when its
+	 * session resumes on a new endpoint.
+	 */
+	private final TopicTrie<Endpoint> topics = new TopicTrie<>();
+	
 	/**
 	 * Password if given
 	 */
@@ -131,7 +279,7 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	 */
 	public ServerManager(int port) {
 		this.port=port;
-		liveEndpoints=new HashSet<>();
+		liveEndpoints=ConcurrentHashMap.newKeySet();
 		setName("ServerManager"); // name the thread, urgh simple log can't print it :-(
 	}
 	
@@ -143,7 +291,7 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	 */
 	public ServerManager(int port,String password) {
 		this.port=port;
-		liveEndpoints=new HashSet<>();
+		liveEndpoints=ConcurrentHashMap.newKeySet();
 		this.password = password;
 		setName("ServerManager"); // name the thread, urgh simple log can't print it :-(
 	}
@@ -174,14 +322,214 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 		ioThread.shutDown();
 	}
 	
+	/**
+	 * Ask a client to stop its session, and to come back after
+	 * {@link #retryAfter} ms if that is set.
+	 * @param sessionProtocol
+	 */
+	private void stopSession(SessionProtocol sessionProtocol) {
+		if(retryAfter>0) {
+			sessionProtocol.stopSession(retryAfter);
+		} else {
+			sessionProtocol.stopSession();
+		}
+	}
+	
 	/**
 	 * Convenience wrapper
 	 * @return the number of live endpoints
 	 */
 	public int numLiveEndpoints() {
-		synchronized(liveEndpoints) {
-			return liveEndpoints.size();
+		return liveEndpoints.size();
+	}
+	
+	/**
+	 * Send an event to every client whose session has started, other than
+	 * the one it came from.
+	 * @param eventName
+	 * @param eventData
+	 * @param origin endpoint not to send the event to, or null
+	 * @return the counts of clients the event was and was not sent to
+	 * @see #broadcast(String, String, Predicate)
+	 */
+	public CompletableFuture<BroadcastResult> broadcast(String eventName, String eventData, Endpoint origin) {
+		return broadcast(eventName,eventData,(endpoint)->endpoint!=origin);
+	}
+	
+	/**
+	 * Send an event to every client whose session has started and that the
+	 * filter accepts, other than clients that have said they have no
+	 * callbacks for it, which are not counted. The event is encoded once and copies of it, that
+	 * differ only in their sequence numbers, are queued to be sent on each
+	 * endpoint by {@link #broadcastThreads} threads, so that the caller
+	 * does not wait for slow clients or hold the lock of one endpoint while
+	 * waiting for another. Broadcasts reach each endpoint in the order they
+	 * were made, but not in order with events emitted on the endpoint
+	 * directly. Unlike emitting on each endpoint, the event is not emitted
+	 * to the endpoint's own listeners.
+	 * @param eventName
+	 * @param eventData
+	 * @param filter the endpoints to send to, or null for all of them
+	 * @return completes with the counts of clients the event was and was not
+	 * sent to, once it has been sent or batched on all of them
+	 */
+	public CompletableFuture<BroadcastResult> broadcast(String eventName, String eventData, Predicate<Endpoint> filter) {
+		return broadcast(new EventRequest(eventName,eventData),filter);
+	}
+	
+	/**
+	 * Send an event that has been made already, e.g. one received from a
+	 * client and relayed with {@link EventRequest#relay(String)}, in the same
+	 * way as {@link #broadcast(String, String, Predicate)}.
+	 * @param event only copies of it are sent
+	 * @param filter the endpoints to send to, or null for all of them
+	 * @return completes with the counts of clients the event was and was not
+	 * sent to
+	 */
+	public CompletableFuture<BroadcastResult> broadcast(EventRequest event, Predicate<Endpoint> filter) {
+		List<Endpoint> endpoints = new ArrayList<>();
+		for(Endpoint endpoint : liveEndpoints) {
+			if(filter==null || filter.test(endpoint)) endpoints.add(endpoint);
+		}
+		return fanOut(event,endpoints);
+	}
+	
+	/**
+	 * Queue copies of an event to be sent on each of the endpoints, after
+	 * the broadcasts already queued for them.
+	 * @param event
+	 * @param endpoints
+	 * @return completes with the counts of endpoints the event was and was
+	 * not sent to
+	 */
+	private CompletableFuture<BroadcastResult> fanOut(EventRequest event, Collection<Endpoint> endpoints) {
+		ExecutorService executor = getBroadcaster();
+		List<CompletableFuture<Boolean>> sends = new ArrayList<>();
+		synchronized(broadcastTails) {
+			for(Endpoint endpoint : endpoints) {
+				EventProtocol eventProtocol=(EventProtocol) endpoint.getProtocol(EventProtocol.protocolName);
+				if(eventProtocol==null) continue; // session not started yet
+				if(!eventProtocol.isRemoteInterested(event.getEventName())) continue;
+				CompletableFuture<Boolean> tail = broadcastTails.get(endpoint);
+				CompletableFuture<Boolean> send;
+				if(tail==null) {
+					send=CompletableFuture.supplyAsync(()->sendBroadcast(eventProtocol,event),executor);
+				} else {
+					send=tail.handleAsync((sent,e)->sendBroadcast(eventProtocol,event),executor);
+				}
+				broadcastTails.put(endpoint,send);
+				send.whenComplete((sent,e)->broadcastTails.remove(endpoint,send));
+				sends.add(send);
+			}
 		}
+		return CompletableFuture.allOf(sends.toArray(new CompletableFuture<?>[0])).handle((v,e)->{
+			int delivered=0;
+			for(CompletableFuture<Boolean> send : sends) {
+				if(send.join()) delivered++;
+			}
+			return new BroadcastResult(delivered,sends.size()-delivered);
+		});
+	}
+	
+	/**
+	 * Subscribe an endpoint to a topic, so that data published to it is sent
+	 * to the client as a {@link #topicEvent}. Clients can do the same by
+	 * emitting {@link #subscribeTopic}.
+	 * @param endpoint
+	 * @param pattern a topic such as "boards/host:port/board1", a prefix
+	 * followed by "/*" for all of the topics under it, or "*" for all topics
+	 * @return true if the endpoint was not subscribed to the pattern already
+	 * @throws IllegalArgumentException if the pattern is not valid
+	 * @see {@link pb.utils.TopicTrie}
+	 */
+	public boolean subscribe(Endpoint endpoint, String pattern) {
+		return topics.subscribe(endpoint,pattern);
+	}
+	
+	/**
+	 * Unsubscribe an endpoint from a pattern it subscribed to.
+	 * @param endpoint
+	 * @param pattern
+	 * @return true if the endpoint was subscribed to the pattern
+	 * @throws IllegalArgumentException if the pattern is not valid
+	 */
+	public boolean unsubscribe(Endpoint endpoint, String pattern) {
+		return topics.unsubscribe(endpoint,pattern);
+	}
+	
+	/**
+	 * Send data to the clients subscribed to a topic, in the same way as
+	 * {@link #broadcast(String, String, Predicate)} but only to them.
+	 * @param topic
+	 * @param data
+	 * @param origin endpoint not to send the data to, or null
+	 * @return completes with the counts of clients the data was and was not
+	 * sent to
+	 * @throws IllegalArgumentException if the topic is not valid
+	 */
+	public CompletableFuture<BroadcastResult> publish(String topic, String data, Endpoint origin) {
+		Set<Endpoint> subscribers = topics.match(topic);
+		if(origin!=null) subscribers.remove(origin);
+		return fanOut(new EventRequest(topicEvent,toTopicData(topic,data)),subscribers);
+	}
+	
+	/**
+	 * @param topic
+	 * @param data
+	 * @return the topic and data as a single String, for {@link #publishTopic}
+	 * and {@link #topicEvent}; the topic must not contain "%"
+	 */
+	public static String toTopicData(String topic, String data) {
+		return topic+topicSeparator+data;
+	}
+	
+	/**
+	 * @param topicData as made by {@link #toTopicData(String, String)}
+	 * @return the topic
+	 */
+	public static String getTopic(String topicData) {
+		int i = topicData.indexOf(topicSeparator);
+		return i<0?topicData:topicData.substring(0,i);
+	}
+	
+	/**
+	 * @param topicData as made by {@link #toTopicData(String, String)}
+	 * @return the data
+	 */
+	public static String getTopicData(String topicData) {
+		int i = topicData.indexOf(topicSeparator);
+		return i<0?"":topicData.substring(i+1);
+	}
+	
+	/**
+	 * @param eventProtocol
+	 * @param event
+	 * @return true if a copy of the event was sent or batched on the endpoint
+	 */
+	private boolean sendBroadcast(EventProtocol eventProtocol, EventRequest event) {
+		try {
+			return eventProtocol.sendEvent(new EventRequest(event));
+		} catch (RuntimeException e) {
+			log.warning("could not broadcast "+event.getEventName()+": "+e.getMessage());
+			return false;
+		}
+	}
+	
+	/**
+	 * @return the threads that send broadcast events
+	 */
+	private synchronized ExecutorService getBroadcaster() {
+		if(broadcaster==null) {
+			int threads = Math.max(1,broadcastThreads);
+			broadcaster=new ThreadPoolExecutor(threads,threads,60,TimeUnit.SECONDS,
+					new LinkedBlockingQueue<>(),(task)->{
+				Thread thread = new Thread(task,"Broadcaster");
+				thread.setDaemon(true);
+				return thread;
+			});
+			broadcaster.allowCoreThreadTimeOut(true);
+		}
+		return broadcaster;
 	}
 	
 	@Override
@@ -211,10 +559,7 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 		// However no new endpoints can be created.
 		
 		// let's create our own list of endpoints that exist at this point
-		HashSet<Endpoint> currentEndpoints = new HashSet<>();
-		synchronized(liveEndpoints) {
-			currentEndpoints = new HashSet<>(liveEndpoints);
-		}
+		HashSet<Endpoint> currentEndpoints = new HashSet<>(liveEndpoints);
 		
 		// if we want to tell clients to end session
 		// it is indeed possible that both may be set true
@@ -223,7 +568,7 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 			currentEndpoints.forEach((endpoint)->{
 				SessionProtocol sessionProtocol=(SessionProtocol) endpoint.getProtocol("SessionProtocol");
 				if(sessionProtocol!=null)
-					sessionProtocol.stopSession();
+					stopSession(sessionProtocol);
 			});
 		}
 		
@@ -250,9 +595,7 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 			}
 			if(vaderShutdown) {
 				// maybe we missed some earlier
-				synchronized(liveEndpoints) {
-					currentEndpoints = new HashSet<>(liveEndpoints);
-				}
+				currentEndpoints = new HashSet<>(liveEndpoints);
 				currentEndpoints.forEach((endpoint)->{
 						endpoint.close();
 				});
@@ -269,16 +612,53 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	 */
 	public void acceptClient(Socket clientSocket) {
 		Endpoint endpoint = new Endpoint(clientSocket,this);
+		endpoint.decodeQueueSize=decodeQueueSize;
+		endpoint.dispatchQueueSize=dispatchQueueSize;
+		endpoint.rateLimits=rateLimits;
 		endpoint.start();
 	}
 	
+	/**
+	 * Take the events of the topic broker from a client, see
+	 * {@link #topicsEnabled}.
+	 * @param endpoint
+	 */
+	private void listenForTopics(Endpoint endpoint) {
+		endpoint.on(subscribeTopic, (args)->{
+			String pattern = (String) args[0];
+			if(topics.numPatterns(endpoint)>=maxTopicPatterns) {
+				log.warning("client "+endpoint.getOtherEndpointId()+" has too many subscriptions: "+pattern);
+				return;
+			}
+			try {
+				subscribe(endpoint,pattern);
+			} catch (IllegalArgumentException e) {
+				log.warning("client "+endpoint.getOtherEndpointId()+" can not subscribe: "+e.getMessage());
+			}
+		}).on(unsubscribeTopic, (args)->{
+			String pattern = (String) args[0];
+			try {
+				unsubscribe(endpoint,pattern);
+			} catch (IllegalArgumentException e) {
+				log.warning("client "+endpoint.getOtherEndpointId()+" can not unsubscribe: "+e.getMessage());
+			}
+		}).on(publishTopic, (args)->{
+			String topicData = (String) args[0];
+			try {
+				publish(getTopic(topicData),getTopicData(topicData),endpoint);
+			} catch (IllegalArgumentException e) {
+				log.warning("client "+endpoint.getOtherEndpointId()+" can not publish: "+e.getMessage());
+			}
+		});
+	}
+	
 	/**
 	 * Called by a client endpoint to signal that it is now ready for
 	 * use, the server can send data and it may start receiving messages
-	 * from the client, etc. The server will now start the KeepAlive protocol
-	 * so as to detect clients that are dead. The server will wait for the
-	 * client to start the session protocol, or else terminate the connection
-	 * if it does not stay alive.
+	 * from the client, etc. The server will wait for the client to start the
+	 * session protocol, or else terminate the connection if it does not do so
+	 * in time. The KeepAlive protocol is started with the session, if the
+	 * client asks for it.
 	 * @param endpoint
 	 */
 	@Override
@@ -287,9 +667,9 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 			endpoint.close(); // we'll kill it here
 			return;
 		}
-		synchronized(liveEndpoints) {
-			liveEndpoints.add(endpoint);
-		}
+		liveEndpoints.add(endpoint);
+		
+		if(topicsEnabled) listenForTopics(endpoint);
 		
 		if(password!=null) {
 			// listen for admin client events
@@ -317,14 +697,6 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 			});
 		}
 		
-		KeepAliveProtocol keepAliveProtocol = new KeepAliveProtocol(endpoint,this);
-		try {
-			// we need to add it to the endpoint before starting it
-			endpoint.handleProtocol(keepAliveProtocol);
-			keepAliveProtocol.startAsServer();
-		} catch (ProtocolAlreadyRunning e) {
-			// hmmm... already requested by the client
-		}
 		SessionProtocol sessionProtocol = new SessionProtocol(endpoint,this);
 		try {
 			endpoint.handleProtocol(sessionProtocol);
@@ -342,40 +714,128 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	 */
 	@Override
 	public void endpointClosed(Endpoint endpoint) {
-		synchronized(liveEndpoints) {
-			liveEndpoints.remove(endpoint);
+		liveEndpoints.remove(endpoint);
+		topics.unsubscribeAll(endpoint);
+		// a session that was running on it may still be resumed for a while
+		Utils.getInstance().setTimeout(()->{
+			expireSessions();
+		}, resumeTimeout);
+	}
+	
+	/**
+	 * Forget sessions whose connection dropped more than resumeTimeout ago.
+	 */
+	private void expireSessions() {
+		synchronized(sessions) {
+			sessions.values().removeIf((session)->{
+				if(!session.hasExpired(resumeTimeout)) return false;
+				session.end();
+				sessionEndpoints.remove(session.getSessionId());
+				return true;
+			});
+		}
+	}
+	
+	/**
+	 * A client that reconnected has asked to resume its session. If the
+	 * server has not noticed yet that the old connection dropped then the
+	 * session is handed off from it, so that it delivers no more events, and
+	 * it is closed now.
+	 * @param endpoint the new endpoint
+	 * @param sessionId
+	 * @param lastSeq
+	 * @return the session to resume or null if it can't be resumed
+	 */
+	@Override
+	public EventSession sessionResuming(Endpoint endpoint, String sessionId, long lastSeq) {
+		EventSession session;
+		Endpoint oldEndpoint;
+		synchronized(sessions) {
+			expireSessions();
+			session=sessions.get(sessionId);
+			oldEndpoint=sessionEndpoints.get(sessionId);
+		}
+		if(session==null || !session.canReplayAfter(lastSeq)) {
+			log.info("session can not be resumed, starting a new one: "+sessionId);
+			return null;
 		}
+		if(oldEndpoint!=null && oldEndpoint!=endpoint) {
+			SessionProtocol sessionProtocol=(SessionProtocol) oldEndpoint.getProtocol(SessionProtocol.protocolName);
+			if(sessionProtocol!=null) {
+				log.warning("closing old connection of resumed session: "+oldEndpoint.getOtherEndpointId());
+				EventProtocol eventProtocol=(EventProtocol) oldEndpoint.getProtocol(EventProtocol.protocolName);
+				if(eventProtocol!=null) {
+					log.info("session handed off after event "+eventProtocol.handOff());
+				}
+				localEmit(sessionError,oldEndpoint);
+				oldEndpoint.close();
+			}
+		}
+		return session;
 	}
 
 	/**
 	 * The session has started for this client endpoint. Other protocols
-	 * may now be started, etc. We will start the event protocol now.
+	 * may now be started, etc. We will start the protocols that the client
+	 * asked for in its start request now.
 	 * @param endpoint
 	 */
 	@Override
 	public void sessionStarted(Endpoint endpoint) {
-		log.info("session has started with client: "+endpoint.getOtherEndpointId());
+		SessionProtocol session=(SessionProtocol) endpoint.getProtocol(SessionProtocol.protocolName);
+		EventSession eventSession=session.getEventSession();
+		if(session.isResumed()) {
+			log.info("session has resumed with client: "+endpoint.getOtherEndpointId());
+		} else {
+			log.info("session has started with client: "+endpoint.getOtherEndpointId());
+		}
+		synchronized(sessions) {
+			sessions.put(eventSession.getSessionId(),eventSession);
+			sessionEndpoints.put(eventSession.getSessionId(),endpoint);
+		}
 		
 		if(forceShutdown) {
 			// ask the client to stop now
 			SessionProtocol sessionProtocol=(SessionProtocol) endpoint.getProtocol("SessionProtocol");
 			if(sessionProtocol!=null)
-				sessionProtocol.stopSession();
+				stopSession(sessionProtocol);
 		}
 		
-		// now start the event protocol
-		EventProtocol eventProtocol = new EventProtocol(endpoint,this);
-		try {
-			endpoint.handleProtocol(eventProtocol);
-			eventProtocol.startAsServer();
-		} catch (ProtocolAlreadyRunning e) {
-			// hmmm... already requested by the client
+		// now start the protocols the client asked for
+		if(session.hasProtocol(KeepAliveProtocol.protocolName)) {
+			KeepAliveProtocol keepAliveProtocol = new KeepAliveProtocol(endpoint,this);
+			try {
+				// we need to add it to the endpoint before starting it
+				endpoint.handleProtocol(keepAliveProtocol);
+				keepAliveProtocol.startAsServer();
+			} catch (ProtocolAlreadyRunning e) {
+				// hmmm... already requested by the client
+			}
+		}
+		if(session.hasProtocol(EventProtocol.protocolName)) {
+			EventProtocol eventProtocol = new EventProtocol(endpoint,this);
+			eventProtocol.setSession(eventSession);
+			session.configure(eventProtocol);
+			try {
+				endpoint.handleProtocol(eventProtocol);
+				eventProtocol.startAsServer();
+			} catch (ProtocolAlreadyRunning e) {
+				// hmmm... already requested by the client
+			}
+			if(session.isResumed()) {
+				eventProtocol.replay(session.getPeerLastSeq());
+			}
 		}
 		
 		// the event protocol has started but still no events
 		// could have been received at this point
 		localEmit(sessionStarted,endpoint);
 		
+		// the callbacks for the session are in place, tell the client which
+		// events it need not send
+		EventProtocol startedEventProtocol=(EventProtocol) endpoint.getProtocol(EventProtocol.protocolName);
+		if(startedEventProtocol!=null) startedEventProtocol.advertiseInterest();
+		
 	}
 
 	/**
@@ -389,6 +849,15 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	public void sessionStopped(Endpoint endpoint) {
 		log.info("session has stopped with client: "+endpoint.getOtherEndpointId());
 		
+		// the session ended cleanly so it won't be resumed
+		SessionProtocol session=(SessionProtocol) endpoint.getProtocol(SessionProtocol.protocolName);
+		if(session!=null && session.getEventSession()!=null) {
+			synchronized(sessions) {
+				sessions.remove(session.getEventSession().getSessionId());
+				sessionEndpoints.remove(session.getEventSession().getSessionId());
+			}
+		}
+		
 		localEmit(sessionStopped,endpoint);
 		
 		// we can now signal the client endpoint to close and forget this client
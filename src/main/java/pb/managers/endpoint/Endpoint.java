@@ -3,15 +3,27 @@ package pb.managers.endpoint;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Logger;
 
+import pb.utils.EventKey;
 import pb.utils.Eventable;
+import pb.utils.ResolverCache;
+import pb.utils.TokenBucket;
 import pb.utils.Utils;
+import pb.protocols.Document;
+import pb.protocols.HeaderTable;
 import pb.protocols.InvalidMessage;
 import pb.protocols.Message;
 import pb.protocols.Protocol;
@@ -31,6 +43,19 @@ import pb.protocols.session.SessionProtocol;
  * method to send data to the socket which will be sent to the other endpoint.
  * Any number of protocols can be handled by the endpoint, but there can be only
  * one instance of each protocol running at a time.
+ * <br/>
+ * Remote procedure calls can be made over the endpoint's events using
+ * {@link #call(String, String)} and answered using
+ * {@link #serve(String, IRpcHandler)}. Calls carry an id so that many of them
+ * can be pipelined on the one connection.
+ * <br/>
+ * Incoming messages are read, decoded and dispatched to their protocol by
+ * the endpoint thread. With {@link #decodeQueueSize} or
+ * {@link #dispatchQueueSize} set, reading and decoding run ahead on threads
+ * of their own, joined to the endpoint thread by bounded queues, so that a
+ * slow protocol or event callback does not hold up the socket. Messages are
+ * still dispatched one at a time, in the order they arrived, and always on
+ * the endpoint thread.
  * 
  * @see {@link pb.managers.Manager}
  * @see {@link pb.protocols.session.SessionProtocol}
@@ -46,6 +71,24 @@ public class Endpoint extends Eventable {
 	 */
 	private Socket socket;
 	
+	/**
+	 * The host and port to connect the socket to when the endpoint starts,
+	 * or null if the socket is already connected.
+	 */
+	private String host=null;
+	private int port=0;
+	
+	/**
+	 * Looks up the host to connect to.
+	 */
+	private ResolverCache resolver=null;
+	
+	/**
+	 * Why the endpoint could not make its connection, or null if it has not
+	 * failed to.
+	 */
+	private volatile IOException connectError=null;
+	
 	/**
 	 * The manager to report to when things happen.
 	 */
@@ -81,6 +124,108 @@ public class Endpoint extends Eventable {
 	 */
 	private volatile boolean stopped=true; // the use of send will return false always
 	
+	/**
+	 * Largest binary payload that will be accepted on a message.
+	 */
+	public static final int maxPayloadLength = 64*1024*1024;
+	
+	/**
+	 * Time in ms to wait for the connection to be made, when the endpoint
+	 * makes it. Zero waits for as long as the operating system does.
+	 */
+	public int connectTimeout = 10000;
+	
+	/**
+	 * Default time in ms to wait for the result of a remote procedure call.
+	 */
+	public int rpcTimeout = 40000;
+	
+	/**
+	 * Most remote procedure calls that are sent without a result yet, further
+	 * calls wait until a result arrives.
+	 */
+	public int maxCallsInFlight = 64;
+	
+	/**
+	 * Whether the session of this endpoint may be suspended once it is idle,
+	 * see {@link pb.managers.PeerManager#maxClientSessions}. An application
+	 * that waits for events the other side sends unprompted, e.g. updates to
+	 * a board it listens to, clears it for as long as it waits.
+	 */
+	public volatile boolean evictable = true;
+	
+	/**
+	 * Remote procedure calls, created when first used.
+	 */
+	private volatile RpcChannel rpc=null;
+	
+	/**
+	 * Messages read that may wait to be decoded, on a thread of their own.
+	 * Zero decodes them on the thread that reads them. Must be set before
+	 * the endpoint starts.
+	 */
+	public int decodeQueueSize = 0;
+	
+	/**
+	 * Decoded messages that may wait to be dispatched by the endpoint thread.
+	 * Zero dispatches them on the thread that decodes them. Must be set
+	 * before the endpoint starts.
+	 */
+	public int dispatchQueueSize = 0;
+	
+	/**
+	 * A message on its way from the socket to its protocol.
+	 */
+	private static class Incoming {
+		String line;
+		Document doc;
+		byte[] payload;
+		Message msg;
+		
+		/**
+		 * Why the message could not be read or decoded, in which case
+		 * it goes no further.
+		 */
+		Exception error;
+	}
+	
+	/**
+	 * Queues between the stages, null when the stages run on one thread.
+	 */
+	private BlockingQueue<Incoming> decodeQueue=null;
+	private BlockingQueue<Incoming> dispatchQueue=null;
+	
+	/**
+	 * Threads of the stages before dispatch.
+	 */
+	private final List<Thread> stages = new ArrayList<>();
+	
+	/**
+	 * Limits on how fast messages are taken from the other side, usually
+	 * shared with the other endpoints of the manager, or null for none. Must
+	 * be set before the endpoint starts.
+	 */
+	public volatile RateLimits rateLimits = null;
+	
+	/**
+	 * Token buckets for the limited protocols and events, by name, used by
+	 * the endpoint thread only. Names that are not limited have none, so
+	 * that the names the other side sends are not kept.
+	 */
+	private final Map<String,TokenBucket> buckets = new HashMap<>();
+	
+	/**
+	 * The header values sent on this connection, once the session has the
+	 * capability, otherwise null. Used while sending, which is synchronized.
+	 */
+	private HeaderTable sendTable = null;
+	
+	/**
+	 * The header values received on this connection, used in the order
+	 * messages are decoded.
+	 */
+	private final HeaderTable receiveTable = new HeaderTable();
+	
 	/**
 	 * Initialise the endpoint with a socket and a manager.
 	 * @param socket
@@ -94,6 +239,24 @@ public class Endpoint extends Eventable {
 		setName("Endpoint"); // name the thread
 	}
 	
+	/**
+	 * Initialise the endpoint with a host and port to connect to, and a
+	 * manager. The connection is made by the endpoint thread when it starts,
+	 * so that looking up the host and connecting do not hold up the caller.
+	 * If the connection can't be made the manager is told that the endpoint
+	 * disconnected abruptly.
+	 * @param host
+	 * @param port
+	 * @param resolver to look up the host with
+	 * @param manager
+	 */
+	public Endpoint(String host, int port, ResolverCache resolver, IEndpointHandler manager) {
+		this(new Socket(),manager);
+		this.host=host;
+		this.port=port;
+		this.resolver=resolver;
+	}
+	
 	/**
 	 * Send a Message on the socket for this endpoint. This is synchronized
 	 * to avoid multiple concurrent messages overwriting each other on the socket.
@@ -104,7 +267,10 @@ public class Endpoint extends Eventable {
 		if(stopped) return false;
 		try {
 			log.info("sending "+msg.getName()+" for protocol "+msg.getProtocolName()+" to "+getOtherEndpointId());
-			out.writeUTF(msg.toJsonString());
+			String json = msg.toJsonString();
+			out.writeUTF(sendTable!=null?sendTable.encode(json):json);
+			// a binary payload follows the json text, its length is in the json
+			if(msg.getPayload()!=null) out.write(msg.getPayload());
 			out.flush();
 		} catch (IOException e) {
 			manager.endpointDisconnectedAbruptly(this);
@@ -113,6 +279,25 @@ public class Endpoint extends Eventable {
 		return true;
 	}
 	
+	/**
+	 * Send the header values of messages once and then refer to them by
+	 * number, from the next message on, see {@link pb.protocols.HeaderTable}.
+	 * Only when the other side has said it can decode them, e.g. with
+	 * {@link pb.protocols.session.SessionProtocol#headerTable}.
+	 */
+	public synchronized void startHeaderTable() {
+		if(sendTable==null) sendTable=new HeaderTable();
+	}
+	
+	/**
+	 * 
+	 * @return the header values sent on this connection, with the characters
+	 * they saved, or null if they are not being used
+	 */
+	public synchronized HeaderTable getHeaderTable() {
+		return sendTable;
+	}
+	
 	/**
 	 * Send a message and attach a timeout identifier to it. The callback
 	 * is triggered if no reply to the message was seen within the given
@@ -155,6 +340,57 @@ public class Endpoint extends Eventable {
 		return(send(msg));
 	}
 	
+	/**
+	 * Call a method on the other side, which must serve it using
+	 * {@link #serve(String, IRpcHandler)}, and wait at most {@link #rpcTimeout} ms
+	 * for the result. The event protocol must be running on the endpoint.
+	 * @param method
+	 * @param arg
+	 * @return the future result, which fails with a
+	 * {@link java.util.concurrent.TimeoutException} if the result does not come
+	 * in time, or with an {@link RpcException} if the call failed on the other
+	 * side or the endpoint closed
+	 */
+	public CompletableFuture<String> call(String method, String arg) {
+		return call(method,arg,rpcTimeout);
+	}
+	
+	/**
+	 * Call a method on the other side with a given deadline.
+	 * @see #call(String, String)
+	 * @param method
+	 * @param arg
+	 * @param timeout ms to wait for the result
+	 * @return the future result
+	 */
+	public CompletableFuture<String> call(String method, String arg, int timeout) {
+		return rpc().call(method,arg,timeout);
+	}
+	
+	/**
+	 * Answer calls to a method made by the other side. The handler runs on
+	 * the endpoint thread.
+	 * @param method
+	 * @param handler
+	 * @return this endpoint for chaining
+	 */
+	public Endpoint serve(String method, IRpcHandler handler) {
+		rpc().serve(method,handler);
+		return this;
+	}
+	
+	/**
+	 * @return the remote procedure calls for this endpoint
+	 */
+	private RpcChannel rpc() {
+		if(rpc==null) {
+			synchronized(this) {
+				if(rpc==null) rpc=new RpcChannel(this);
+			}
+		}
+		return rpc;
+	}
+	
 	/**
 	 * Closes the endpoint, which closes the socket. Both the endpoint thread
 	 * and the timer thread may end up attempting to do this in the event that
@@ -204,6 +440,21 @@ public class Endpoint extends Eventable {
 			log.warning("socket did not close properly: "+e.getMessage());
 		}
 		manager.endpointClosed(this);
+		if(rpc!=null) rpc.close();
+		
+		// if the endpoint thread is running, it drops the callbacks once it
+		// has finished with the message it may be part way through
+		if(!isAlive()) removeListeners();
+	}
+	
+	/**
+	 * Nothing more will be received from this endpoint, so drop the callbacks
+	 * and whatever state they have captured. Callbacks for all events ("*") are
+	 * kept, so that the event protocol can still keep events emitted on the
+	 * endpoint for a session that may be resumed on a new connection.
+	 */
+	private void removeListeners() {
+		removeAllListeners(EventKey.any);
 	}
 	
 	/**
@@ -212,70 +463,275 @@ public class Endpoint extends Eventable {
 	@Override
 	public void run() {
 		try {
+			if(host!=null) socket.connect(new InetSocketAddress(resolver.resolve(host),port),connectTimeout);
 			in = new DataInputStream(socket.getInputStream());
 			out = new DataOutputStream(socket.getOutputStream());
 		} catch (IOException e){
+			connectError=e;
 			manager.endpointDisconnectedAbruptly(this);
+			removeListeners();
+			manager.endpointTerminated(this);
 			return;
 		}
 		stopped=false; // allow use of the out stream
 		manager.endpointReady(this);
 		log.info("endpoint has started to: "+getOtherEndpointId());
+		startStages();
 		while(!isInterrupted()) {
+			Incoming incoming;
 			try {
-				String line=in.readUTF();
-				Message msg = Message.toMessage(line);
-				// cancel any related time out
-				if(msg.getType()==Message.Type.Reply) {
-					synchronized(outstandingIds) {
-						outstandingIds.remove(msg.getTimeoutId());
-					}
-				}
-				// find the protocol
-				Protocol protocol=null;
-				synchronized(protocols) {
-					protocol=protocols.get(msg.getProtocolName());
-				}
-				if(protocol==null) {
-					switch(msg.getProtocolName()) {
-					case SessionProtocol.protocolName:
-						protocol=new SessionProtocol(this,(ISessionProtocolHandler)manager);
-						break;
-					case KeepAliveProtocol.protocolName:
-						protocol=new KeepAliveProtocol(this,(IKeepAliveProtocolHandler)manager);
-						break;
-					case EventProtocol.protocolName:
-						protocol=new EventProtocol(this,(IEventProtocolHandler)manager);
-					}
-					if(!manager.protocolRequested(this,protocol)) {
-						log.info("message dropped due to no protocol available: "+line);
-						continue;
-					}
-				}
-				log.info("received "+msg.getName()+" for protocol "+msg.getProtocolName()+" from "+getOtherEndpointId());
-				switch(msg.getType()) {
-				case Request:
-					((IRequestReplyProtocol)protocol).receiveRequest(msg);
-					break;
-				case Reply:
-					((IRequestReplyProtocol)protocol).receiveReply(msg);
-					break;
-				}
-			} catch (IOException e) {
+				incoming=next();
+			} catch (InterruptedException e) {
+				break;
+			}
+			if(incoming.error instanceof IOException) {
 				manager.endpointDisconnectedAbruptly(this);
 				// we can't continue here
 				break;
-			} catch (InvalidMessage e) {
+			}
+			if(incoming.error!=null) {
 				manager.endpointSentInvalidMessage(this);
 				// up to the client what to do
+				continue;
 			}
+			if(!dispatch(incoming)) break;
 		}
+		stages.forEach((stage)->{stage.interrupt();});
 		try {
 			in.close();
 		} catch (IOException e) {
 			log.warning("connection did not close properly: "+e.getMessage());
 		}
+		removeListeners();
 		log.info("endpoint has terminated to: "+getOtherEndpointId());
+		manager.endpointTerminated(this);
+	}
+	
+	/**
+	 * Start the threads for reading and decoding, if they have queues.
+	 */
+	private void startStages() {
+		if(decodeQueueSize>0) decodeQueue=new ArrayBlockingQueue<>(decodeQueueSize);
+		if(dispatchQueueSize>0) dispatchQueue=new ArrayBlockingQueue<>(dispatchQueueSize);
+		if(decodeQueue==null && dispatchQueue==null) return;
+		startStage("reader",()->{
+			Incoming incoming=read();
+			if(decodeQueue!=null) {
+				decodeQueue.put(incoming);
+			} else {
+				dispatchQueue.put(decode(incoming));
+			}
+			return incoming.error==null;
+		});
+		if(decodeQueue!=null && dispatchQueue!=null) {
+			startStage("decoder",()->{
+				Incoming incoming=decode(decodeQueue.take());
+				dispatchQueue.put(incoming);
+				return !(incoming.error instanceof IOException);
+			});
+		}
+	}
+	
+	/**
+	 * Run a stage on a thread of its own until it is done, or interrupted
+	 * because the endpoint thread has finished.
+	 * @param name
+	 * @param step handles one message, returning false when no more will follow
+	 */
+	private void startStage(String name, Callable<Boolean> step) {
+		Thread stage = new Thread(()->{
+			try {
+				while(step.call());
+			} catch (InterruptedException e) {
+				// the endpoint thread is no longer dispatching
+			} catch (Exception e) {
+				log.severe("endpoint "+name+" failed: "+e.getMessage());
+			}
+		});
+		stage.setName(getName()+"-"+name);
+		stages.add(stage);
+		stage.start();
+	}
+	
+	/**
+	 * 
+	 * @return the next message to dispatch, from whichever stage is before
+	 * dispatch
+	 * @throws InterruptedException if the endpoint thread is interrupted
+	 * while waiting for it
+	 */
+	private Incoming next() throws InterruptedException {
+		if(dispatchQueue!=null) return dispatchQueue.take();
+		if(decodeQueue!=null) return decode(decodeQueue.take());
+		return decode(read());
+	}
+	
+	/**
+	 * Read the next message from the socket. Only a message that may have a
+	 * binary payload is parsed here, since the payload length is needed to
+	 * read the rest of it, other messages are parsed when decoded.
+	 * @return the message read, or the IOException that stopped it
+	 */
+	private Incoming read() {
+		Incoming incoming = new Incoming();
+		try {
+			incoming.line=in.readUTF();
+			if(incoming.line.contains("\"payloadLength\"")) {
+				incoming.doc=Document.parse(incoming.line);
+				incoming.payload=readPayload(incoming.doc);
+			}
+		} catch (IOException e) {
+			incoming.error=e;
+		}
+		return incoming;
+	}
+	
+	/**
+	 * Turn a message read into a Message object.
+	 * @param incoming
+	 * @return the same message, with the Message object or the InvalidMessage
+	 * that stopped it
+	 */
+	private Incoming decode(Incoming incoming) {
+		if(incoming.error!=null) return incoming;
+		try {
+			if(incoming.line.contains("\"#\"")) {
+				// put back the header values the other side left out
+				String line = receiveTable.decode(incoming.line);
+				if(line!=incoming.line) {
+					incoming.line=line;
+					incoming.doc=null;
+				}
+			}
+			if(incoming.doc==null) incoming.doc=Document.parse(incoming.line);
+			incoming.msg=Message.toMessage(incoming.doc);
+			incoming.msg.setReceivedJson(incoming.line);
+			if(incoming.payload!=null) incoming.msg.setPayload(incoming.payload);
+		} catch (InvalidMessage e) {
+			incoming.error=e;
+		} catch (IllegalArgumentException e) {
+			log.warning("bad header table reference: "+e.getMessage());
+			incoming.error=new InvalidMessage();
+		}
+		return incoming;
+	}
+	
+	/**
+	 * Hand a message to its protocol, starting the protocol if the other
+	 * side has asked for it.
+	 * @param incoming
+	 * @return false if the endpoint has closed and no more messages should
+	 * be dispatched
+	 */
+	private boolean dispatch(Incoming incoming) {
+		Message msg = incoming.msg;
+		// cancel any related time out
+		if(msg.getType()==Message.Type.Reply) {
+			synchronized(outstandingIds) {
+				outstandingIds.remove(msg.getTimeoutId());
+			}
+		}
+		// find the protocol
+		Protocol protocol=null;
+		synchronized(protocols) {
+			protocol=protocols.get(msg.getProtocolName());
+		}
+		if(protocol==null) {
+			// closed while the message was being read, the protocols
+			// have stopped and must not be started again
+			if(stopped) return false;
+			switch(msg.getProtocolName()) {
+			case SessionProtocol.protocolName:
+				protocol=new SessionProtocol(this,(ISessionProtocolHandler)manager);
+				break;
+			case KeepAliveProtocol.protocolName:
+				protocol=new KeepAliveProtocol(this,(IKeepAliveProtocolHandler)manager);
+				break;
+			case EventProtocol.protocolName:
+				protocol=new EventProtocol(this,(IEventProtocolHandler)manager);
+			}
+			if(!manager.protocolRequested(this,protocol)) {
+				log.info("message dropped due to no protocol available: "+incoming.line);
+				return true;
+			}
+		}
+		log.info("received "+msg.getName()+" for protocol "+msg.getProtocolName()+" from "+getOtherEndpointId());
+		if(!awaitTurn(msg.getProtocolName(),false,Long.MAX_VALUE)) return false;
+		switch(msg.getType()) {
+		case Request:
+			((IRequestReplyProtocol)protocol).receiveRequest(msg);
+			break;
+		case Reply:
+			((IRequestReplyProtocol)protocol).receiveReply(msg);
+			break;
+		}
+		return true;
+	}
+	
+	/**
+	 * Wait for the turn of an event under {@link #rateLimits}, if the event is
+	 * limited. Called by the event protocol before it delivers an event.
+	 * @param eventName
+	 * @return false if the event should be rejected, since it would wait too
+	 * long, or the endpoint is closing
+	 */
+	public boolean admitEvent(String eventName) {
+		RateLimits rateLimits = this.rateLimits;
+		if(rateLimits==null) return true;
+		if(awaitTurn(eventName,true,rateLimits.maxDelay)) return true;
+		rateLimits.rejected(eventName);
+		return false;
+	}
+	
+	/**
+	 * Take a token for a protocol or event under {@link #rateLimits}, waiting
+	 * for it if need be.
+	 * @param name protocol or event name
+	 * @param event whether the name is an event name
+	 * @param maxWait most ms to wait
+	 * @return false if the token would take longer than maxWait, or the
+	 * endpoint thread was interrupted while waiting
+	 */
+	private boolean awaitTurn(String name, boolean event, long maxWait) {
+		RateLimits rateLimits = this.rateLimits;
+		if(rateLimits==null) return true;
+		String key = event ? "event:"+name : name;
+		TokenBucket bucket = buckets.get(key);
+		if(bucket==null) {
+			bucket = event ? rateLimits.newEventBucket(name) : rateLimits.newProtocolBucket(name);
+			if(bucket==null) return true; // not limited
+			buckets.put(key,bucket);
+		}
+		long wait = bucket.reserve(maxWait);
+		if(wait<0) return false;
+		if(wait==0) return true;
+		rateLimits.delayed(name);
+		try {
+			Thread.sleep(wait);
+		} catch (InterruptedException e) {
+			interrupt(); // the endpoint is closing
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Read the binary payload that follows a message, if it has one. This
+	 * is done before the message itself is validated so that the stream
+	 * stays in step even if the message turns out to be invalid.
+	 * @param doc the parsed message
+	 * @return the payload or null if the message has none
+	 * @throws IOException if the payload can't be read, including when its
+	 * length is not valid since the stream can no longer be followed
+	 */
+	private byte[] readPayload(Document doc) throws IOException {
+		if(!doc.containsKey("payloadLength")) return null;
+		if(!(doc.get("payloadLength") instanceof Long)) throw new IOException("bad payload length");
+		long length = doc.getLong("payloadLength");
+		if(length<0 || length>maxPayloadLength) throw new IOException("bad payload length: "+length);
+		byte[] payload = new byte[(int) length];
+		in.readFully(payload);
+		return payload;
 	}
 	
 	/**
@@ -314,11 +770,33 @@ public class Endpoint extends Eventable {
 		}
 	}
 	
+	/**
+	 * Whether remote procedure calls are waiting on this endpoint, either
+	 * calls that have not completed or methods served to the other side.
+	 * Callbacks for events are not counted, since applications keep theirs
+	 * for the whole session; they clear {@link #evictable} instead.
+	 * @return true if the endpoint is in use beyond the events sent on it
+	 */
+	public boolean isInUse() {
+		RpcChannel rpc = this.rpc;
+		return rpc!=null && rpc.isInUse();
+	}
+
 	/**
 	 * 
+	 * @return why the endpoint could not make its connection, e.g. an
+	 * {@link java.net.UnknownHostException}, or null if it did not fail to
+	 */
+	public IOException getConnectError() {
+		return connectError;
+	}
+
+	/**
+	 *
 	 * @return the id of the other endpoint
 	 */
 	public String getOtherEndpointId() {
+		if(socket.getInetAddress()==null) return host+":"+port; // not connected yet
 		return socket.getInetAddress().toString()+":"+socket.getPort();
 	}
 
@@ -22,6 +22,13 @@ public interface IEndpointHandler {
 	 */
 	public void endpointDisconnectedAbruptly(Endpoint endpoint);
 	
+	/**
+	 * The endpoint thread has finished, after any of the other calls above.
+	 * The endpoint will not call the manager again.
+	 * @param endpoint
+	 */
+	public void endpointTerminated(Endpoint endpoint);
+	
 	/**
 	 * An invalid message was received over the endpoint.
 	 * @param endpoint
@@ -0,0 +1,13 @@
+package pb.managers.endpoint;
+
+@FunctionalInterface
+public interface IRpcHandler {
+	/**
+	 * Handle a remote procedure call.
+	 * @param arg the argument given by the caller
+	 * @return the result to send back to the caller
+	 * @throws Exception to send back an error, with the exception message,
+	 * instead of a result
+	 */
+	public String call(String arg) throws Exception;
+}
@@ -0,0 +1,186 @@
+package pb.managers.endpoint;
+
+import java.time.Instant;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import pb.utils.TokenBucket;
+
+/**
+ * Limits on how fast each endpoint takes messages of a protocol, or events
+ * of a name, from the other side. The limits are shared by all of the
+ * endpoints of a manager, and each endpoint has token buckets of its own,
+ * so one peer that sends too fast does not slow down the others.
+ * <ul>
+ * <li>Messages of a limited protocol wait until their turn, since protocols
+ * can not cope with messages going missing. The peer is then read from
+ * more slowly.</li>
+ * <li>Events of a limited name wait at most {@link #maxDelay} ms, otherwise
+ * they are rejected and the peer is sent
+ * {@link pb.protocols.event.EventProtocol#rateLimited} instead.</li>
+ * </ul>
+ * Since an endpoint takes its messages one at a time, an event never waits
+ * longer than one token's worth of time, 1000/perSecond ms, so a maxDelay
+ * of at least that paces the events rather than rejecting them.
+ * Counts of the messages that were delayed and rejected are kept by name,
+ * and logged every {@link #reportInterval} ms while there is throttling.
+ *
+ * @see {@link pb.managers.endpoint.Endpoint#rateLimits}
+ * @see {@link pb.utils.TokenBucket}
+ * @author aaron
+ *
+ */
+public class RateLimits {
+	private static Logger log = Logger.getLogger(RateLimits.class.getName());
+
+	/**
+	 * Most ms an event waits for its turn before it is rejected. Zero rejects
+	 * events as soon as the burst has been used up.
+	 */
+	public volatile int maxDelay = 0;
+
+	/**
+	 * Least ms between logging the throttling counts.
+	 */
+	public volatile int reportInterval = 10000;
+
+	/**
+	 * A limit, as {perSecond,burst}, by protocol name.
+	 */
+	private final Map<String,double[]> protocolLimits = new ConcurrentHashMap<>();
+
+	/**
+	 * A limit, as {perSecond,burst}, by event name.
+	 */
+	private final Map<String,double[]> eventLimits = new ConcurrentHashMap<>();
+
+	/**
+	 * Messages delayed and rejected, by protocol or event name.
+	 */
+	private final Map<String,LongAdder> delayed = new ConcurrentHashMap<>();
+	private final Map<String,LongAdder> rejected = new ConcurrentHashMap<>();
+
+	/**
+	 * When the counts were last logged, in ms.
+	 */
+	private final AtomicLong lastReport = new AtomicLong(0);
+
+	/**
+	 * Limit the messages of a protocol taken from each endpoint.
+	 * @param protocolName
+	 * @param perSecond messages per second on average, more than zero
+	 * @param burst messages taken at once before the limit applies
+	 * @return this for chaining
+	 */
+	public RateLimits limitProtocol(String protocolName, double perSecond, int burst) {
+		protocolLimits.put(protocolName,limit(perSecond,burst));
+		return this;
+	}
+
+	/**
+	 * Limit the events of a name taken from each endpoint.
+	 * @param eventName
+	 * @param perSecond events per second on average, more than zero
+	 * @param burst events taken at once before the limit applies
+	 * @return this for chaining
+	 */
+	public RateLimits limitEvent(String eventName, double perSecond, int burst) {
+		eventLimits.put(eventName,limit(perSecond,burst));
+		return this;
+	}
+
+	private static double[] limit(double perSecond, int burst) {
+		if(!(perSecond>0)) throw new IllegalArgumentException("rate must be more than zero: "+perSecond);
+		return new double[] {perSecond,burst};
+	}
+
+	/**
+	 * @param protocolName
+	 * @return a bucket for an endpoint to take the protocol's messages from,
+	 * or null if the protocol is not limited
+	 */
+	TokenBucket newProtocolBucket(String protocolName) {
+		return newBucket(protocolLimits.get(protocolName));
+	}
+
+	/**
+	 * @param eventName
+	 * @return a bucket for an endpoint to take the events from, or null if
+	 * the event is not limited
+	 */
+	TokenBucket newEventBucket(String eventName) {
+		return newBucket(eventLimits.get(eventName));
+	}
+
+	private static TokenBucket newBucket(double[] limit) {
+		return limit==null?null:new TokenBucket(limit[0],(int) limit[1]);
+	}
+
+	/**
+	 * A message was delayed to keep to its limit.
+	 * @param name protocol or event name
+	 */
+	void delayed(String name) {
+		delayed.computeIfAbsent(name,(n)->new LongAdder()).increment();
+		report();
+	}
+
+	/**
+	 * An event was rejected to keep to its limit.
+	 * @param name event name
+	 */
+	void rejected(String name) {
+		rejected.computeIfAbsent(name,(n)->new LongAdder()).increment();
+		report();
+	}
+
+	/**
+	 * Log the counts, unless they were logged recently.
+	 */
+	private void report() {
+		long now = Instant.now().toEpochMilli();
+		long last = lastReport.get();
+		if(now-last<reportInterval || !lastReport.compareAndSet(last,now)) return;
+		log.warning("throttled "+this);
+	}
+
+	/**
+	 *
+	 * @param name protocol or event name
+	 * @return the number of messages delayed to keep to the limit
+	 */
+	public long getDelayed(String name) {
+		LongAdder count = delayed.get(name);
+		return count==null?0:count.sum();
+	}
+
+	/**
+	 *
+	 * @param name event name
+	 * @return the number of events rejected to keep to the limit
+	 */
+	public long getRejected(String name) {
+		LongAdder count = rejected.get(name);
+		return count==null?0:count.sum();
+	}
+
+	/**
+	 * @return the counts of delayed and rejected messages, by name
+	 */
+	@Override
+	public String toString() {
+		Set<String> names = new TreeSet<>(delayed.keySet());
+		names.addAll(rejected.keySet());
+		StringBuilder sb = new StringBuilder();
+		names.forEach((name)->{
+			if(sb.length()>0) sb.append(", ");
+			sb.append(name+": "+getDelayed(name)+" delayed, "+getRejected(name)+" rejected");
+		});
+		return sb.toString();
+	}
+}
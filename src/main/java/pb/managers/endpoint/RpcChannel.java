@@ -0,0 +1,324 @@
+package pb.managers.endpoint;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Logger;
+
+import pb.protocols.Document;
+import pb.protocols.event.EventProtocol;
+import pb.utils.EventKey;
+
+/**
+ * Remote procedure calls for an endpoint, carried as events. The events are
+ * sent straight to the event protocol, rather than emitted on the endpoint,
+ * so that they are not also delivered locally. Each call is
+ * given an id that the result carries back, so that any number of calls can
+ * be pipelined on the one connection and their results told apart, in
+ * whatever order they come back. At most {@link Endpoint#maxCallsInFlight}
+ * calls are sent without a result yet; further calls wait their turn.
+ *
+ * @see {@link pb.managers.endpoint.Endpoint#call(String, String)}
+ * @see {@link pb.managers.endpoint.Endpoint#serve(String, IRpcHandler)}
+ * @author aaron
+ *
+ */
+class RpcChannel {
+	private static Logger log = Logger.getLogger(RpcChannel.class.getName());
+
+	/**
+	 * Event carrying a call, the argument is a json document with the call id,
+	 * method and argument.
+	 */
+	static final EventKey<String> rpcCall = EventKey.of("RPC_CALL");
+
+	/**
+	 * Event carrying a result, the argument is a json document with the call
+	 * id and either the result or an error.
+	 */
+	static final EventKey<String> rpcResult = EventKey.of("RPC_RESULT");
+
+	/**
+	 * Times the calls out. Unlike the timer of {@link pb.utils.Utils}, a
+	 * timeout that is cancelled when its call completes is let go straight
+	 * away, rather than kept with its call until it would have run.
+	 */
+	private static final ScheduledThreadPoolExecutor timeouts = new ScheduledThreadPoolExecutor(1,(task)->{
+		Thread thread = new Thread(task,"RpcTimeout");
+		thread.setDaemon(true);
+		return thread;
+	});
+	static {
+		timeouts.setRemoveOnCancelPolicy(true);
+	}
+
+	/**
+	 * A call that has been made and has not completed.
+	 */
+	private static class Call {
+		final long id;
+		final String method;
+		final String json;
+		final CompletableFuture<String> future = new CompletableFuture<>();
+
+		/**
+		 * Fails the call if it has not completed in time, set before the
+		 * call is sent.
+		 */
+		ScheduledFuture<?> timeout = null;
+
+		Call(long id, String method, String json) {
+			this.id=id;
+			this.method=method;
+			this.json=json;
+		}
+	}
+
+	private final Endpoint endpoint;
+
+	/**
+	 * Handlers for calls made by the other side, by method.
+	 */
+	private final Map<String,IRpcHandler> handlers = new ConcurrentHashMap<>();
+
+	// Caller side state, guarded by this.
+
+	/**
+	 * Id for the next call made.
+	 */
+	private long nextId = 1;
+
+	/**
+	 * Calls sent and waiting for a result, by id.
+	 */
+	private final Map<Long,Call> inFlight = new HashMap<>();
+
+	/**
+	 * Calls waiting for room in the in-flight window, oldest first.
+	 */
+	private final ArrayDeque<Call> waiting = new ArrayDeque<>();
+
+	/**
+	 * Whether the endpoint has closed.
+	 */
+	private boolean closed = false;
+
+	RpcChannel(Endpoint endpoint) {
+		this.endpoint=endpoint;
+		endpoint.on(rpcCall, (json)->{
+			receiveCall(json);
+		}).on(rpcResult, (json)->{
+			receiveResult(json);
+		});
+	}
+
+	/**
+	 * Make a call, sending it now if there is room in the in-flight window.
+	 * @param method
+	 * @param arg
+	 * @param timeout ms to wait for the result
+	 * @return the future result
+	 */
+	CompletableFuture<String> call(String method, String arg, int timeout) {
+		Call call;
+		boolean sendNow;
+		synchronized(this) {
+			long id = nextId++;
+			Document doc = new Document();
+			doc.append("id", id);
+			doc.append("method", method);
+			doc.append("arg", arg);
+			call = new Call(id,method,doc.toJson());
+			if(closed) {
+				call.future.completeExceptionally(new RpcException("endpoint closed"));
+				return call.future;
+			}
+			sendNow = inFlight.size()<endpoint.maxCallsInFlight;
+			if(sendNow) {
+				inFlight.put(id,call);
+			} else {
+				waiting.add(call);
+			}
+			final Call timed = call;
+			call.timeout = timeouts.schedule(()->{
+				timedOut(timed);
+			}, timeout, TimeUnit.MILLISECONDS);
+		}
+		if(sendNow) send(rpcCall,call);
+		return call.future;
+	}
+
+	/**
+	 * A call has completed or failed, so it need not be timed out.
+	 * @param call
+	 */
+	private static void cancelTimeout(Call call) {
+		if(call.timeout!=null) call.timeout.cancel(false);
+	}
+
+	/**
+	 * Fail a call that has not completed in time, making room for the next.
+	 * @param call
+	 */
+	private void timedOut(Call call) {
+		boolean removed;
+		synchronized(this) {
+			removed = inFlight.remove(call.id)!=null || waiting.remove(call);
+		}
+		if(!removed) return; // already completed
+		call.future.completeExceptionally(new TimeoutException("call "+call.id+" timed out"));
+		sendWaiting();
+	}
+
+	/**
+	 * Send waiting calls while there is room in the in-flight window.
+	 */
+	private void sendWaiting() {
+		while(true) {
+			Call call;
+			synchronized(this) {
+				if(closed || waiting.isEmpty() || inFlight.size()>=endpoint.maxCallsInFlight) return;
+				call=waiting.poll();
+				inFlight.put(call.id,call);
+			}
+			send(rpcCall,call);
+		}
+	}
+	
+	/**
+	 * Send a call to the other side, failing it if the event protocol is
+	 * not running, or if the other side serves no methods, in which case it
+	 * has told the event protocol that it has no callbacks for calls and
+	 * the call would not be sent.
+	 * @param key
+	 * @param call
+	 */
+	private void send(EventKey<String> key, Call call) {
+		EventProtocol eventProtocol = (EventProtocol) endpoint.getProtocol(EventProtocol.protocolName);
+		String error = null;
+		if(eventProtocol==null) {
+			error = "event protocol is not running";
+		} else if(!eventProtocol.isRemoteInterested(key.getName())) {
+			error = "no such method: "+call.method;
+		} else {
+			eventProtocol.sendEvent(key.getName(),call.json);
+			return;
+		}
+		synchronized(this) {
+			inFlight.remove(call.id);
+		}
+		cancelTimeout(call);
+		call.future.completeExceptionally(new RpcException(error));
+	}
+	
+	/**
+	 * @param key
+	 * @param json
+	 * @return false if the event protocol is not running
+	 */
+	private boolean send(EventKey<String> key, String json) {
+		EventProtocol eventProtocol = (EventProtocol) endpoint.getProtocol(EventProtocol.protocolName);
+		if(eventProtocol==null) return false;
+		eventProtocol.sendEvent(key.getName(),json);
+		return true;
+	}
+
+	/**
+	 * The result of one of our calls has arrived.
+	 * @param json
+	 */
+	private void receiveResult(String json) {
+		Document doc = Document.parse(json);
+		if(!(doc.get("id") instanceof Long)) {
+			log.warning("invalid call result: "+json);
+			return;
+		}
+		Call call;
+		synchronized(this) {
+			call = inFlight.remove(doc.getLong("id"));
+		}
+		if(call==null) return; // timed out already
+		cancelTimeout(call);
+		if(doc.get("result") instanceof String) {
+			call.future.complete(doc.getString("result"));
+		} else {
+			call.future.completeExceptionally(new RpcException(String.valueOf(doc.get("error"))));
+		}
+		sendWaiting();
+	}
+
+	/**
+	 * The other side has made a call, run the handler and send back the result.
+	 * The handler runs on the endpoint thread, like any event callback.
+	 * @param json
+	 */
+	private void receiveCall(String json) {
+		Document doc = Document.parse(json);
+		if(!(doc.get("id") instanceof Long) || !(doc.get("method") instanceof String)
+				|| !(doc.get("arg") instanceof String)) {
+			log.warning("invalid call: "+json);
+			return;
+		}
+		Document reply = new Document();
+		reply.append("id", doc.getLong("id"));
+		IRpcHandler handler = handlers.get(doc.getString("method"));
+		if(handler==null) {
+			reply.append("error", "no such method: "+doc.getString("method"));
+		} else {
+			try {
+				String result = handler.call(doc.getString("arg"));
+				reply.append("result", result!=null?result:"");
+			} catch (Exception e) {
+				reply.append("error", e.getMessage()!=null?e.getMessage():e.toString());
+			}
+		}
+		send(rpcResult,reply.toJson());
+	}
+
+	/**
+	 * Handle calls to a method.
+	 * @param method
+	 * @param handler
+	 */
+	void serve(String method, IRpcHandler handler) {
+		handlers.put(method,handler);
+	}
+
+	/**
+	 * 
+	 * @return true if calls are waiting for a result or methods are served
+	 * to the other side
+	 */
+	boolean isInUse() {
+		if(!handlers.isEmpty()) return true;
+		synchronized(this) {
+			return !inFlight.isEmpty() || !waiting.isEmpty();
+		}
+	}
+
+	/**
+	 * The endpoint has closed, fail every call that has not completed.
+	 */
+	void close() {
+		List<Call> failed;
+		synchronized(this) {
+			closed=true;
+			failed = new ArrayList<>(inFlight.values());
+			failed.addAll(waiting);
+			inFlight.clear();
+			waiting.clear();
+		}
+		failed.forEach((call)->{
+			cancelTimeout(call);
+			call.future.completeExceptionally(new RpcException("endpoint closed"));
+		});
+	}
+}
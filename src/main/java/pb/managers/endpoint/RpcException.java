@@ -0,0 +1,18 @@
+package pb.managers.endpoint;
+
+/**
+ * A remote procedure call did not return a result, either because the remote
+ * handler failed, there was no handler for the method, or the endpoint closed
+ * before the result arrived.
+ * 
+ * @see {@link pb.managers.endpoint.Endpoint#call(String, String)}
+ * @author aaron
+ *
+ */
+@SuppressWarnings("serial")
+public class RpcException extends Exception {
+	
+	public RpcException(String message) {
+		super(message);
+	}
+}
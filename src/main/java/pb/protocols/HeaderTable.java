@@ -0,0 +1,265 @@
+package pb.protocols;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A table of header values for one direction of a connection, in the style
+ * of HPACK, so that header values repeated from message to message are sent
+ * once and then referred to by number. The values of the {@link #indexedKeys}
+ * and the leading field of the event data, up to the first '%', e.g. the
+ * board name of "host:port:board%3%path", are kept, as are those of each event
+ * of a batch. Values are entered as they are first sent, both sides enter
+ * them in the same order, and the oldest are dropped when the table is full.
+ * <p>
+ * A message that uses the table has a "#" member listing the numbers of the
+ * values it leaves out, and the receiver puts them back before parsing it.
+ * The table works on the JSON text as it was encoded, so values are not
+ * decoded or encoded again, and any binary payload after the text is sent
+ * as it is. The sender and the receiver must each use the table for every
+ * message, in the order the messages are sent.
+ *
+ * @see {@link pb.protocols.session.SessionProtocol#headerTable}
+ * @see {@link pb.managers.endpoint.Endpoint#startHeaderTable()}
+ * @author aaron
+ *
+ */
+public class HeaderTable {
+
+	/**
+	 * Members whose values are kept in the table.
+	 */
+	public static final List<String> indexedKeys = List.of("name","protocolName","type","eventName");
+
+	/**
+	 * Number of values kept, the same on both sides.
+	 */
+	public static final int maxEntries = 256;
+
+	/**
+	 * Longest value kept, in characters as encoded.
+	 */
+	public static final int maxEntryLength = 128;
+
+	private static final String refsKey = "#";
+	private static final String dataKey = "eventData";
+	private static final String eventsKey = "events";
+
+	/**
+	 * The entries, as key and value, by number modulo maxEntries.
+	 */
+	private final String[][] entries = new String[maxEntries][];
+
+	/**
+	 * Number of the next entry.
+	 */
+	private long inserted = 0;
+
+	/**
+	 * Numbers of the entries by key and value, used when sending.
+	 */
+	private final Map<String,Long> numbers = new HashMap<>();
+
+	/**
+	 * Characters of JSON before and after using the table.
+	 */
+	private final LongAdder plainLength = new LongAdder();
+	private final LongAdder encodedLength = new LongAdder();
+	private final LongAdder messages = new LongAdder();
+
+	/**
+	 * Leave out the header values of a message that are in the table, and
+	 * enter those that are not.
+	 * @param json the message
+	 * @return the message to send
+	 * @throws IllegalArgumentException if the text is not a JSON object
+	 */
+	public synchronized String encode(String json) {
+		String encoded = encodeMembers(RawJson.members(json),true);
+		plainLength.add(json.length());
+		encodedLength.add(encoded.length());
+		messages.increment();
+		return encoded;
+	}
+
+	/**
+	 * Put back the header values that a received message left out, and
+	 * enter those it sent. A message that does not use the table is returned
+	 * as it is.
+	 * @param json the received message
+	 * @return the message as it was before it was encoded
+	 * @throws IllegalArgumentException if the text is not a JSON object or
+	 * refers to values that are not in the table
+	 */
+	public synchronized String decode(String json) {
+		Map<String,String> members = RawJson.members(json);
+		if(!members.containsKey(refsKey)) return json;
+		return decodeMembers(members);
+	}
+
+	private String encodeMembers(Map<String,String> members, boolean top) {
+		List<Long> refs = new ArrayList<>();
+		StringBuilder sb = new StringBuilder("{");
+		for(String key : indexedKeys) {
+			String value = members.remove(key);
+			if(value==null) continue;
+			Long number = isIndexable(value)?numbers.get(entryName(key,value)):null;
+			if(number!=null) {
+				refs.add(number);
+				continue;
+			}
+			append(sb,key,value);
+			if(isIndexable(value)) insert(key,value);
+		}
+		String data = members.remove(dataKey);
+		if(data!=null) {
+			String header = dataHeader(data);
+			Long number = header!=null?numbers.get(entryName(dataKey,header)):null;
+			if(number!=null) {
+				refs.add(number);
+				append(sb,dataKey,"\""+data.substring(header.length()+1));
+			} else {
+				append(sb,dataKey,data);
+				if(header!=null) insert(dataKey,header);
+			}
+		}
+		String events = members.remove(eventsKey);
+		if(events!=null) {
+			List<String> encoded = new ArrayList<>();
+			for(String event : RawJson.elements(events)) {
+				encoded.add(event.startsWith("{")?encodeMembers(RawJson.members(event),false):event);
+			}
+			append(sb,eventsKey,"["+String.join(",",encoded)+"]");
+		}
+		members.forEach((key,value)->append(sb,key,value));
+		if(top || !refs.isEmpty()) append(sb,refsKey,refs.toString().replace(" ",""));
+		return sb.append('}').toString();
+	}
+
+	private String decodeMembers(Map<String,String> members) {
+		Map<String,String> referred = new HashMap<>();
+		String refs = members.remove(refsKey);
+		if(refs!=null) {
+			for(String ref : RawJson.elements(refs)) {
+				String[] entry = entry(Long.parseLong(ref.trim()));
+				referred.put(entry[0],entry[1]);
+			}
+		}
+		StringBuilder sb = new StringBuilder("{");
+		for(String key : indexedKeys) {
+			String value = referred.get(key);
+			if(value==null) {
+				value = members.get(key);
+				if(value==null) continue;
+				if(isIndexable(value)) insert(key,value);
+			}
+			members.remove(key);
+			append(sb,key,value);
+		}
+		String data = members.remove(dataKey);
+		if(data!=null) {
+			String header = referred.get(dataKey);
+			if(header!=null) {
+				data = "\""+header+data.substring(1);
+			} else {
+				header = dataHeader(data);
+				if(header!=null) insert(dataKey,header);
+			}
+			append(sb,dataKey,data);
+		}
+		String events = members.remove(eventsKey);
+		if(events!=null) {
+			List<String> decoded = new ArrayList<>();
+			for(String event : RawJson.elements(events)) {
+				decoded.add(event.startsWith("{")?decodeMembers(RawJson.members(event)):event);
+			}
+			append(sb,eventsKey,"["+String.join(",",decoded)+"]");
+		}
+		members.forEach((key,value)->append(sb,key,value));
+		return sb.append('}').toString();
+	}
+
+	private static void append(StringBuilder sb, String key, String value) {
+		if(sb.length()>1) sb.append(',');
+		sb.append('"').append(key).append("\":").append(value);
+	}
+
+	/**
+	 * @param value as encoded
+	 * @return true if the value is a string that is short enough to keep
+	 */
+	private static boolean isIndexable(String value) {
+		return value.startsWith("\"") && value.length()<=maxEntryLength;
+	}
+
+	/**
+	 * @param data the event data as encoded
+	 * @return the leading field of the data as encoded, without the quote,
+	 * or null if it has none that can be kept
+	 */
+	private static String dataHeader(String data) {
+		int end = data.indexOf('%');
+		if(!data.startsWith("\"") || end<2 || end>maxEntryLength) return null;
+		return data.substring(1,end);
+	}
+
+	private static String entryName(String key, String value) {
+		return key+"\u0000"+value;
+	}
+
+	private void insert(String key, String value) {
+		int slot = (int) (inserted%maxEntries);
+		String[] old = entries[slot];
+		if(old!=null) numbers.remove(entryName(old[0],old[1]),inserted-maxEntries);
+		entries[slot] = new String[] {key,value};
+		numbers.put(entryName(key,value),inserted);
+		inserted++;
+	}
+
+	/**
+	 * @param number
+	 * @return the entry, as key and value
+	 * @throws IllegalArgumentException if there is no such entry
+	 */
+	private String[] entry(long number) {
+		if(number<0 || number>=inserted || number<inserted-maxEntries)
+			throw new IllegalArgumentException("no header table entry "+number);
+		return entries[(int) (number%maxEntries)];
+	}
+
+	/**
+	 *
+	 * @return the number of messages encoded
+	 */
+	public long getMessages() {
+		return messages.sum();
+	}
+
+	/**
+	 *
+	 * @return the characters of JSON of the messages encoded, as they were
+	 * before using the table
+	 */
+	public long getPlainLength() {
+		return plainLength.sum();
+	}
+
+	/**
+	 *
+	 * @return the characters of JSON of the messages encoded, as they were
+	 * sent
+	 */
+	public long getEncodedLength() {
+		return encodedLength.sum();
+	}
+
+	@Override
+	public String toString() {
+		long n = Math.max(1,getMessages());
+		return getMessages()+" messages, "+getPlainLength()/n+" chars/message before, "
+				+getEncodedLength()/n+" after";
+	}
+}
@@ -1,5 +1,9 @@
 package pb.protocols;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import pb.protocols.event.EventBatchRequest;
 import pb.protocols.event.EventReply;
 import pb.protocols.event.EventRequest;
 import pb.protocols.keepalive.KeepAliveReply;
@@ -32,6 +36,18 @@ public class Message {
 	 */
 	protected Document doc;
 	
+	/**
+	 * Optional binary payload, sent as raw bytes straight after the JSON text
+	 * of the message rather than being encoded into it.
+	 */
+	protected byte[] payload=null;
+	
+	/**
+	 * The JSON text the message was received as, or null if it was not
+	 * received.
+	 */
+	private String receivedJson=null;
+	
 	/**
 	 * Initialiser when given parameters explicitly.
 	 * @param name the name of the message (its classname by convention)
@@ -62,6 +78,28 @@ public class Message {
 		if(!(doc.get(key) instanceof String)) throw new InvalidMessage();
 	}
 	
+	static public void validateStringListType(String key,Document doc) throws InvalidMessage {
+		if(!doc.containsKey(key)) throw new InvalidMessage();
+		if(!(doc.get(key) instanceof ArrayList)) throw new InvalidMessage();
+		for(Object o : (ArrayList<?>) doc.get(key)) {
+			if(!(o instanceof String)) throw new InvalidMessage();
+		}
+	}
+	
+	/**
+	 * 
+	 * @param key
+	 * @return the list of strings under the key, or null if there is none
+	 */
+	protected List<String> getStringList(String key) {
+		if(!doc.containsKey(key)) return null;
+		List<String> list = new ArrayList<>();
+		for(Object o : (ArrayList<?>) doc.get(key)) {
+			list.add((String) o);
+		}
+		return list;
+	}
+	
 	/**
 	 * Initialiser when given parameters in a doc.
 	 * @param name the name of the message that is being initialised
@@ -74,6 +112,8 @@ public class Message {
 		validateStringValue("protocolName",protocolName,doc);
 		validateStringValue("type",type.toString(),doc);
 		if(doc.containsKey("timeoutId")) validateLongType("timeoutId",doc);
+		if(doc.containsKey("seq")) validateLongType("seq",doc);
+		if(doc.containsKey("payloadLength")) validateLongType("payloadLength",doc);
 	}
 	
 	/**
@@ -83,7 +123,16 @@ public class Message {
 	 * @throws InvalidMessage if no message object matches the message
 	 */
 	static public Message toMessage(String json) throws InvalidMessage {
-		Document doc = Document.parse(json);
+		return toMessage(Document.parse(json));
+	}
+	
+	/**
+	 * Turn an already parsed document into an appropriate message object.
+	 * @param doc the parsed message
+	 * @return the appropriate message object
+	 * @throws InvalidMessage if no message object matches the message
+	 */
+	static public Message toMessage(Document doc) throws InvalidMessage {
 		// the following test is somewhat repetitive, but it avoids having
 		// to test each message type, handling exceptions for those that are
 		// not the matching message type
@@ -99,6 +148,7 @@ public class Message {
 			case SessionStopReply.name: return new SessionStopReply(doc);
 			case EventRequest.name: return new EventRequest(doc);
 			case EventReply.name: return new EventReply(doc);
+			case EventBatchRequest.name: return new EventBatchRequest(doc);
 			// put more message cases here
 			
 			// if nothing matches, its invalid
@@ -155,4 +205,55 @@ public class Message {
 			return doc.getLong("timeoutId");
 		else return 0;
 	}
+	
+	/**
+	 * Set a sequence number, for protocols that number their messages
+	 * @param seq
+	 */
+	public final void setSeq(long seq) {
+		doc.append("seq", seq);
+	}
+	
+	/**
+	 * Get sequence number
+	 * @return seq or 0 if the message has none
+	 */
+	public final long getSeq() {
+		if(doc.containsKey("seq"))
+			return doc.getLong("seq");
+		else return 0;
+	}
+	
+	/**
+	 * Attach a binary payload to the message.
+	 * @param payload
+	 */
+	public final void setPayload(byte[] payload) {
+		this.payload=payload;
+		doc.append("payloadLength", (long) payload.length);
+	}
+	
+	/**
+	 * Remember the JSON text the message was received as.
+	 * @param json
+	 */
+	public final void setReceivedJson(String json) {
+		this.receivedJson=json;
+	}
+	
+	/**
+	 * @return the JSON text the message was received as, or null if it was
+	 * not received
+	 */
+	public final String getReceivedJson() {
+		return receivedJson;
+	}
+	
+	/**
+	 * Get the binary payload
+	 * @return the payload or null if the message has none
+	 */
+	public final byte[] getPayload() {
+		return payload;
+	}
 }
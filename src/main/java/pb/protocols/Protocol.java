@@ -39,6 +39,14 @@ public class Protocol {
 		this.manager=manager;
 	}
 	
+	/**
+	 * 
+	 * @return the endpoint that is handling the protocol
+	 */
+	public Endpoint getEndpoint() {
+		return endpoint;
+	}
+	
 	/**
 	 * Signal the protocol to stop. More specifically this method
 	 * is called when the protocol should not undertake any more
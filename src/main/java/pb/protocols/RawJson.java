@@ -0,0 +1,139 @@
+package pb.protocols;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Helper for taking the values out of JSON text as they were encoded,
+ * without decoding them, e.g. so that a received event can be sent on
+ * again without encoding its data a second time. The text is assumed to
+ * be valid JSON, as already parsed by {@link Document#parse(String)}.
+ *
+ * @see {@link pb.protocols.event.EventRequest#relay(String)}
+ * @author aaron
+ *
+ */
+public class RawJson {
+
+	/**
+	 * @param json an object
+	 * @return the encoded value of each member of the object, by name
+	 * @throws IllegalArgumentException if the text is not an object
+	 */
+	public static Map<String,String> members(String json) {
+		try {
+			return scanMembers(json);
+		} catch (IndexOutOfBoundsException e) {
+			throw new IllegalArgumentException("JSON object ends early");
+		}
+	}
+
+	private static Map<String,String> scanMembers(String json) {
+		Map<String,String> members = new HashMap<>();
+		int i = skipSpace(json,0);
+		if(i>=json.length() || json.charAt(i)!='{') throw new IllegalArgumentException("not a JSON object");
+		i = skipSpace(json,i+1);
+		while(i<json.length() && json.charAt(i)!='}') {
+			int keyEnd = skipValue(json,i);
+			String key = json.substring(i+1,keyEnd-1); // names are not escaped here
+			i = skipSpace(json,keyEnd);
+			i = skipSpace(json,i+1); // the ':'
+			int valueEnd = skipValue(json,i);
+			members.put(key,json.substring(i,valueEnd));
+			i = skipSpace(json,valueEnd);
+			if(i<json.length() && json.charAt(i)==',') i = skipSpace(json,i+1);
+		}
+		return members;
+	}
+
+	/**
+	 * @param json an array
+	 * @return the encoded value of each element of the array, in order
+	 * @throws IllegalArgumentException if the text is not an array
+	 */
+	public static List<String> elements(String json) {
+		try {
+			return scanElements(json);
+		} catch (IndexOutOfBoundsException e) {
+			throw new IllegalArgumentException("JSON array ends early");
+		}
+	}
+
+	private static List<String> scanElements(String json) {
+		List<String> elements = new ArrayList<>();
+		int i = skipSpace(json,0);
+		if(i>=json.length() || json.charAt(i)!='[') throw new IllegalArgumentException("not a JSON array");
+		i = skipSpace(json,i+1);
+		while(i<json.length() && json.charAt(i)!=']') {
+			int end = skipValue(json,i);
+			elements.add(json.substring(i,end));
+			i = skipSpace(json,end);
+			if(i<json.length() && json.charAt(i)==',') i = skipSpace(json,i+1);
+		}
+		return elements;
+	}
+
+	/**
+	 * @param s
+	 * @return the string encoded as a JSON string, with its quotes
+	 */
+	public static String quote(String s) {
+		StringBuilder sb = new StringBuilder(s.length()+2);
+		sb.append('"');
+		for(int i=0;i<s.length();i++) {
+			char c = s.charAt(i);
+			switch(c) {
+			case '"': sb.append("\\\""); break;
+			case '\\': sb.append("\\\\"); break;
+			case '\n': sb.append("\\n"); break;
+			case '\r': sb.append("\\r"); break;
+			case '\t': sb.append("\\t"); break;
+			default:
+				if(c<0x20) {
+					sb.append(String.format("\\u%04x",(int) c));
+				} else {
+					sb.append(c);
+				}
+			}
+		}
+		return sb.append('"').toString();
+	}
+
+	private static int skipSpace(String json, int i) {
+		while(i<json.length() && Character.isWhitespace(json.charAt(i))) i++;
+		return i;
+	}
+
+	/**
+	 * @param json
+	 * @param i where a value starts
+	 * @return where the value ends
+	 */
+	private static int skipValue(String json, int i) {
+		char c = json.charAt(i);
+		if(c=='"') {
+			for(i++;json.charAt(i)!='"';i++) {
+				if(json.charAt(i)=='\\') i++;
+			}
+			return i+1;
+		}
+		if(c=='{' || c=='[') {
+			int depth = 0;
+			for(;;i++) {
+				c = json.charAt(i);
+				if(c=='"') {
+					i = skipValue(json,i)-1;
+				} else if(c=='{' || c=='[') {
+					depth++;
+				} else if(c=='}' || c==']') {
+					if(--depth==0) return i+1;
+				}
+			}
+		}
+		// a number, true, false or null
+		while(i<json.length() && ",}] \t\r\n".indexOf(json.charAt(i))<0) i++;
+		return i;
+	}
+}
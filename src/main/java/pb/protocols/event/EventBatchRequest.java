@@ -0,0 +1,116 @@
+package pb.protocols.event;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import pb.protocols.Document;
+import pb.protocols.InvalidMessage;
+import pb.protocols.Message;
+import pb.protocols.RawJson;
+
+/**
+ * A number of events sent together in one message. The receiver handles
+ * them in the order they appear in the message, exactly as if they had
+ * been sent as separate {@link EventRequest} messages.
+ * @see {@link pb.protocols.event.EventProtocol}
+ * @author aaron
+ *
+ */
+public class EventBatchRequest extends Message {
+	static final public String name = "EventBatchRequest";
+	
+	/**
+	 * The events of a batch being sent, which are kept out of the doc and
+	 * spliced into the message already encoded. Null for a received batch.
+	 */
+	private final List<EventRequest> events;
+	
+	/**
+	 * The events of a received batch as they were encoded, found when first
+	 * needed.
+	 */
+	private List<String> receivedEvents = null;
+	
+	/**
+	 * Initialiser when given the events explicitly.
+	 * @param events the events to send, in order
+	 */
+	public EventBatchRequest(List<EventRequest> events) {
+		super(name, EventProtocol.protocolName, Message.Type.Request);
+		this.events=new ArrayList<>(events);
+	}
+
+	/**
+	 * Initialiser when given message parameters in a doc.
+	 * @param doc with the message details
+	 * @throws InvalidMessage when the events are missing or malformed
+	 */
+	public EventBatchRequest(Document doc) throws InvalidMessage {
+		super(name,EventProtocol.protocolName,Message.Type.Request,doc);
+		if(!(doc.get("events") instanceof ArrayList)) throw new InvalidMessage();
+		for(Object event : (ArrayList<?>) doc.get("events")) {
+			if(!(event instanceof Document)) throw new InvalidMessage();
+			Message.validateStringType("eventName", (Document) event);
+			Message.validateStringType("eventData", (Document) event);
+		}
+		this.doc=doc;
+		this.events=null;
+	}
+	
+	@Override
+	public String toJsonString() {
+		if(events==null) return super.toJsonString();
+		String header = doc.toJson();
+		StringBuilder sb = new StringBuilder(header.length()-1);
+		sb.append(header,0,header.length()-1).append(",\"events\":[");
+		for(int i=0;i<events.size();i++) {
+			if(i>0) sb.append(',');
+			sb.append('{').append(events.get(i).getEncodedEvent()).append('}');
+		}
+		return sb.append("]}").toString();
+	}
+	
+	/**
+	 * 
+	 * @return the events in this batch, in order
+	 */
+	public List<EventRequest> getEventRequests() {
+		if(events!=null) return new ArrayList<>(events);
+		List<EventRequest> requests = new ArrayList<>();
+		int i=0;
+		for(String[] event : getEvents()) {
+			requests.add(new EventRequest(event[0],event[1],this,i++));
+		}
+		return requests;
+	}
+	
+	/**
+	 * @param index
+	 * @return an event of a received batch as it was encoded, as a JSON object
+	 */
+	synchronized String getReceivedEvent(int index) {
+		if(receivedEvents==null) {
+			receivedEvents = RawJson.elements(RawJson.members(getReceivedJson()).get("events"));
+		}
+		return receivedEvents.get(index);
+	}
+	
+	/**
+	 * 
+	 * @return the events in this batch, in order, as (name, data) pairs
+	 */
+	public List<String[]> getEvents() {
+		List<String[]> events = new ArrayList<>();
+		if(this.events!=null) {
+			for(EventRequest event : this.events) {
+				events.add(new String[] {event.getEventName(),event.getEventData()});
+			}
+			return events;
+		}
+		for(Object event : (ArrayList<?>) doc.get("events")) {
+			Document eventDoc = (Document) event;
+			events.add(new String[] {eventDoc.getString("eventName"),eventDoc.getString("eventData")});
+		}
+		return events;
+	}
+}
@@ -1,17 +1,81 @@
 package pb.protocols.event;
 
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Logger;
 
 import pb.managers.Manager;
 import pb.managers.endpoint.Endpoint;
+import pb.protocols.ICallback;
 import pb.protocols.IRequestReplyProtocol;
 import pb.protocols.Message;
 import pb.protocols.Protocol;
+import pb.utils.EventKey;
+import pb.utils.Subscription;
+import pb.utils.Utils;
 
 /**
  * An event protocol for applications communicate using an asynchronous
  * event system. Each event can include a simple parameter that must
- * be a String. Complex data should be marshaled into a String.
+ * be a String, or else binary data given as a {@code byte[]} or
+ * {@link java.nio.ByteBuffer}. Binary data is carried as the raw payload of
+ * the message, not encoded into a String, and is received as a
+ * {@code byte[]}. Complex data should be marshaled into a String or bytes.
+ * <br/>
+ * Events are numbered with a per-session sequence number. When the session
+ * has the {@link pb.protocols.session.SessionProtocol#cumulativeAck}
+ * capability the receiver acknowledges them cumulatively: at most every
+ * {@link #ackDelay} ms, or after {@link #ackEvery} events, it sends a single
+ * {@link EventReply} saying that everything up to sequence number N has been
+ * received. The sender keeps just one deadline, for the oldest event that is
+ * not yet acknowledged, and times out the connection if that event is not
+ * acknowledged within {@link #eventTimeout} ms. Otherwise, and by default
+ * since the other side may not know about sequence numbers, each event is
+ * acknowledged individually, as the original protocol did, with its own
+ * {@link EventReply} and timeout. Events can instead be sent unacknowledged, either
+ * for a whole connection using {@link #setAckMode(AckMode)} or for particular
+ * event names using {@link #sendUnacknowledged(String...)}. No timer is set
+ * for an unacknowledged event; a dead connection is then detected by the
+ * KeepAlive protocol instead.
+ * <br/>
+ * Events emitted within {@link #batchWindow} ms of each other are coalesced
+ * and sent as a single {@link EventBatchRequest}, which is acknowledged as a
+ * whole, unless the batch reaches {@link #batchBytes} first in which case it is
+ * sent straight away. Latency sensitive events can opt out using
+ * {@link #sendImmediately(String...)}; they are sent at once, after any events
+ * already waiting, so that the order of events is always kept. Events with
+ * binary data are likewise never batched.
+ * <br/>
+ * The sequence numbers and the events not yet acknowledged are kept in an
+ * {@link EventSession}, which outlives the connection. When a session is
+ * resumed on a new connection, {@link #replay(long)} sends again the events
+ * that the other side has not received, and events received twice are
+ * dropped. Events emitted on the endpoint after its connection has dropped,
+ * but before the application has noticed, are kept for replay as well while
+ * the session may still be resumed, and are passed on to the new connection
+ * once it has been. Unacknowledged events are numbered too, so that they can be
+ * replayed, but they never have a deadline; the cumulative acknowledgements
+ * the receiver sends for them only trim the replay buffer. Events acknowledged
+ * individually are not numbered and are not replayed.
+ * <br/>
+ * When both sides support it, each side tells the other which events have
+ * callbacks on its endpoint, with {@link #interest} events: all of them once
+ * the application has registered its callbacks for the session, see
+ * {@link #advertiseInterest()}, and then each event that gains its first
+ * callback or loses its last. Events that the other side has no callbacks
+ * for are then not sent at all, rather than being sent and dropped there.
+ * Until the other side has said, every event is sent.
+ * <br/>
+ * A sender that has a lot to send can pace itself by the events the other
+ * side has not yet acknowledged, see {@link #whenAcknowledged(int, ICallback)},
+ * rather than filling the socket and the replay buffer.
  * @author aaron
  *
  */
@@ -20,9 +84,203 @@ public class EventProtocol extends Protocol implements IRequestReplyProtocol {
 	
 	public static final String protocolName = "EventProtocol";
 	
+	/**
+	 * Sent to the other side in place of delivering one of its events that
+	 * came faster than the rate limits of the endpoint allow, see
+	 * {@link pb.managers.endpoint.RateLimits}. The argument is the name of
+	 * the event that was rejected.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String rateLimited = "RATE_LIMITED";
+	
+	/**
+	 * Sent to the other side to say which events have callbacks on this
+	 * side, handled by the protocol rather than delivered. The argument is
+	 * "=" followed by all of the event names, separated by new lines, or "+"
+	 * or "-" followed by a single event name that has gained its first
+	 * callback or lost its last.
+	 */
+	public static final String interest = "EVENT_INTEREST";
+	
+	/**
+	 * How events sent by this side of the connection are acknowledged.
+	 */
+	static public enum AckMode {
+		/**
+		 * Events are numbered and acknowledged cumulatively, with a single
+		 * timeout for the oldest unacknowledged event.
+		 */
+		Cumulative,
+		/**
+		 * Every event is replied to and has its own timeout.
+		 */
+		PerEvent,
+		/**
+		 * Events have no timeout. They are still numbered, so that they can be
+		 * replayed after a reconnect, and acknowledged cumulatively.
+		 */
+		None
+	}
+	
+	/**
+	 * Event names that are always sent unacknowledged, regardless of the
+	 * ack mode of the connection.
+	 */
+	private static final Set<String> unacknowledgedEvents = ConcurrentHashMap.newKeySet();
+	
+	/**
+	 * Event names that are never held back to be batched.
+	 */
+	private static final Set<String> immediateEvents = ConcurrentHashMap.newKeySet();
+	
 	public int eventTimeout = 40000;
 	
+	/**
+	 * Longest time in ms that the receiver waits before sending a
+	 * cumulative acknowledgement.
+	 */
+	public int ackDelay = 500;
+	
+	/**
+	 * Number of received events after which the receiver sends a
+	 * cumulative acknowledgement straight away.
+	 */
+	public int ackEvery = 32;
+	
+	/**
+	 * Time in ms that an emitted event may wait for other events to be
+	 * sent with it in a batch. Zero turns batching off.
+	 */
+	public int batchWindow = 5;
+	
+	/**
+	 * Bytes of encoded events after which a batch is sent without waiting
+	 * for the rest of the window. An event that would take a batch past this
+	 * is sent in the next batch. It is kept well below the 65535 bytes that
+	 * a message can be, to leave room for the rest of the message.
+	 */
+	public int batchBytes = 8*1024;
+	
+	/**
+	 * Whether to tell the other side which events have callbacks on this
+	 * side, set when the session is configured.
+	 */
+	public volatile boolean exchangeInterest = false;
+	
+	/**
+	 * The events that have callbacks on the other side, or null if it has
+	 * not said, in which case all events are sent.
+	 */
+	private volatile Set<String> remoteInterest = null;
+	
+	/**
+	 * Events not sent since the other side has no callbacks for them.
+	 */
+	private final LongAdder uninteresting = new LongAdder();
+	
 	public volatile boolean stopped=false;
+
+	/**
+	 * Whether the session has been handed off to a new connection, after
+	 * which no more numbered events received on this one are delivered.
+	 */
+	private boolean handedOff=false;
+	
+	/**
+	 * The subscription for all events ("*") emitted on the endpoint, removed
+	 * when the protocol stops so the endpoint does not keep this protocol alive.
+	 */
+	private Subscription allEvents;
+	
+	/**
+	 * The ack mode for events sent on this connection.
+	 */
+	private volatile AckMode ackMode = AckMode.PerEvent;
+	
+	/**
+	 * Sequence numbers and replay buffer for the session.
+	 */
+	private volatile EventSession session = new EventSession();
+	
+	// Sender side state for acknowledgements, guarded by outstanding.
+	
+	/**
+	 * Events sent but not yet acknowledged, oldest first, as {seq,timeSent}.
+	 */
+	private final ArrayDeque<long[]> outstanding = new ArrayDeque<>();
+	
+	/**
+	 * Events sent in {@link AckMode#PerEvent} mode that have not been
+	 * replied to yet. The endpoint keeps their timeouts.
+	 */
+	private int unreplied = 0;
+	
+	/**
+	 * Whether a deadline check is scheduled.
+	 */
+	private boolean deadlinePending = false;
+	
+	/**
+	 * Callbacks waiting for fewer events to be outstanding.
+	 */
+	private final List<Waiter> waiters = new ArrayList<>();
+	
+	private static class Waiter {
+		final int maxOutstanding;
+		final ICallback callback;
+		
+		Waiter(int maxOutstanding, ICallback callback) {
+			this.maxOutstanding = maxOutstanding;
+			this.callback = callback;
+		}
+	}
+	
+	// Receiver side state for cumulative acknowledgements, guarded by this.
+	
+	/**
+	 * Number of events received since the last acknowledgement.
+	 */
+	private int unackedReceived = 0;
+	
+	/**
+	 * Whether an acknowledgement is scheduled.
+	 */
+	private boolean ackPending = false;
+	
+	// Batching state, guarded by the endpoint.
+	
+	/**
+	 * Events waiting to be sent in the next batch.
+	 */
+	private List<EventRequest> pending = new ArrayList<>();
+	
+	/**
+	 * Bytes of the pending events, as they are written in the batch.
+	 */
+	private int pendingBytes = 0;
+	
+	/**
+	 * Whether any pending event needs to be acknowledged.
+	 */
+	private boolean pendingAcknowledged = false;
+	
+	/**
+	 * Whether a flush of the pending events is scheduled.
+	 */
+	private boolean flushPending = false;
+	
+	/**
+	 * When an event was last sent or received on this connection, in ms.
+	 */
+	private volatile long lastActivity = Instant.now().toEpochMilli();
+	
+	/**
+	 * The received event whose callbacks are running, only used by the
+	 * thread delivering it.
+	 */
+	private EventRequest receivedEvent = null;
 	
 	/**
 	 * Event protocol will listen to all events emitted on the endpoint and
@@ -34,15 +292,25 @@ public class EventProtocol extends Protocol implements IRequestReplyProtocol {
 		super(endpoint, (Manager)manager);	
 		// Register an event to listen for all events ("*") emitted on this endpoint and
 		// send them to the remote end point; making sure thats events have
-		// only a String argument
-		endpoint.on("*", (args)->{
-			String eventName = (String) args[0];
-			if(args.length==2 && args[1] instanceof String) {
-				String eventData = (String) args[1];
-				sendEvent(eventName,eventData);
-			} else {
-				log.warning("emitted event must have only a single String data argument: "+eventName);
-			}			
+		// only a String or binary argument
+		allEvents=endpoint.subscribe("*", new IAnyEventCallback() {
+			@Override
+			public void callback(String eventName, Object arg) {
+				if(arg instanceof String) {
+					sendEvent(eventName,(String) arg);
+				} else if(arg instanceof byte[]) {
+					sendEvent(eventName,(byte[]) arg);
+				} else if(arg instanceof ByteBuffer) {
+					sendEvent(eventName,toBytes((ByteBuffer) arg));
+				} else {
+					log.warning("emitted event must have only a single String or binary data argument: "+eventName);
+				}
+			}
+
+			@Override
+			public void callback(Object... args) {
+				log.warning("emitted event must have only a single String or binary data argument: "+args[0]);
+			}
 		});
 	}
 	
@@ -52,13 +320,469 @@ public class EventProtocol extends Protocol implements IRequestReplyProtocol {
 	 * @param eventData
 	 */
 	public void sendEvent(String eventName, String eventData) {
-		if(stopped)return;
-		sendRequest(new EventRequest(eventName,eventData));
+		if(!isWanted(eventName)) return;
+		sendEvent(new EventRequest(eventName,eventData));
+	}
+	
+	/**
+	 * Send an event with binary data to the other side. It is sent straight
+	 * away, after any events that are waiting to be batched.
+	 * @param eventName
+	 * @param eventPayload
+	 */
+	public void sendEvent(String eventName, byte[] eventPayload) {
+		if(!isWanted(eventName)) return;
+		sendEvent(new EventRequest(eventName,eventPayload));
+	}
+	
+	/**
+	 * Send an event that has already been made, e.g. a copy of an event that
+	 * is being sent on many connections, see {@link EventRequest#EventRequest(EventRequest)}.
+	 * The request must not be sent again, as it is numbered for this
+	 * connection. Events with binary data are sent straight away, after any
+	 * events that are waiting to be batched.
+	 * @param eventRequest
+	 * @return true if the event was sent or batched on this connection, or
+	 * the other side has no callbacks for it, false if the connection had
+	 * dropped and the event was kept for the session or given up
+	 */
+	public boolean sendEvent(EventRequest eventRequest) {
+		String eventName = eventRequest.getEventName();
+		if(!isWanted(eventName)) return true;
+		lastActivity = Instant.now().toEpochMilli();
+		// lock the endpoint first, as emitting on the endpoint already does
+		synchronized(endpoint) {
+			if(stopped) {
+				keep(eventRequest);
+				return false;
+			}
+			if(eventRequest.getEventPayload()!=null || batchWindow<=0 || immediateEvents.contains(eventName)
+					|| eventName.equals(interest)) {
+				flush();
+				transmit(eventRequest,isAcknowledged(eventName));
+				return true;
+			}
+			int size = encodedLength(eventRequest.getEncodedEvent())+3; // {},
+			if(pendingBytes+size>batchBytes) flush();
+			pending.add(eventRequest);
+			pendingBytes+=size;
+			if(isAcknowledged(eventName)) pendingAcknowledged=true;
+			if(pendingBytes>=batchBytes) {
+				flush();
+			} else if(!flushPending) {
+				flushPending=true;
+				Utils.getInstance().setTimeout(()->{
+					flush();
+				}, batchWindow);
+			}
+			return true;
+		}
+	}
+	
+	/**
+	 * 
+	 * @param eventName
+	 * @return true unless the other side has said it has no callbacks for
+	 * the event
+	 */
+	public boolean isRemoteInterested(String eventName) {
+		Set<String> names = remoteInterest;
+		return names==null || names.contains(eventName) || eventName.equals(interest);
+	}
+	
+	/**
+	 * @param eventName
+	 * @return true if the event should be sent, otherwise it is counted
+	 */
+	private boolean isWanted(String eventName) {
+		if(isRemoteInterested(eventName)) return true;
+		uninteresting.increment();
+		log.fine("not sending event without remote callbacks: "+eventName);
+		return false;
 	}
 	
+	/**
+	 * 
+	 * @return the number of events not sent because the other side had no
+	 * callbacks for them
+	 */
+	public long getUninterestingEvents() {
+		return uninteresting.sum();
+	}
+	
+	/**
+	 * Tell the other side which events have callbacks on this side, and keep
+	 * telling it as callbacks are added and removed, if the session has the
+	 * capability. Managers call this once the application has registered its
+	 * callbacks for the session, so that the other side does not stop
+	 * sending events that are about to get callbacks.
+	 */
+	public void advertiseInterest() {
+		synchronized(endpoint) {
+			if(!exchangeInterest || stopped) return;
+			endpoint.setListeningCallback((args)->{
+				String eventName = (String) args[0];
+				if(stopped || eventName.equals(EventKey.any.getName())) return;
+				sendEvent(interest,((Boolean) args[1]?"+":"-")+eventName);
+			});
+			List<String> names = endpoint.listeningTo();
+			names.remove(EventKey.any.getName());
+			sendEvent(interest,"="+String.join("\n",names));
+		}
+	}
+	
+	/**
+	 * The other side has said which events have callbacks.
+	 * @param names as sent in an {@link #interest} event
+	 */
+	private void receiveInterest(String names) {
+		if(names.isEmpty()) return;
+		Set<String> current = remoteInterest;
+		switch(names.charAt(0)) {
+		case '=':
+			Set<String> all = ConcurrentHashMap.newKeySet();
+			if(names.length()>1) Collections.addAll(all,names.substring(1).split("\n"));
+			remoteInterest = all;
+			break;
+		case '+':
+			if(current!=null) current.add(names.substring(1));
+			break;
+		case '-':
+			if(current!=null) current.remove(names.substring(1));
+			break;
+		default:
+			log.warning("bad event interest: "+names);
+		}
+	}
+	
+	/**
+	 * An event was emitted after the connection dropped. Keep it for replay
+	 * if the session is waiting to be resumed, pass it on if the session has
+	 * been resumed on a new connection, e.g. it was emitted by a callback
+	 * that was still running on this endpoint, or otherwise stop listening
+	 * for events on the endpoint.
+	 * @param msg
+	 */
+	private void keep(Message msg) {
+		if(session.recordIfDetached(msg)) return;
+		EventProtocol carrier = session.getCarrier();
+		if(carrier!=null && carrier!=this) {
+			// the endpoint lock of this old connection is held, taking the
+			// lock of the new one after it is the only order used
+			carrier.sendKept(msg);
+		} else {
+			allEvents.off();
+		}
+	}
+	
+	/**
+	 * Send an event, or batch, that was emitted on an earlier endpoint of
+	 * the session, after any events waiting to be batched.
+	 * @param msg
+	 */
+	private void sendKept(Message msg) {
+		synchronized(endpoint) {
+			if(stopped) {
+				keep(msg);
+				return;
+			}
+			flush();
+			transmit(msg,ackMode!=AckMode.None);
+		}
+	}
+	
+	/**
+	 * @param buffer
+	 * @return the remaining bytes of the buffer, without copying them if
+	 * the buffer wraps exactly a whole array
+	 */
+	private static byte[] toBytes(ByteBuffer buffer) {
+		if(buffer.hasArray() && buffer.arrayOffset()==0 && buffer.position()==0
+				&& buffer.remaining()==buffer.array().length) {
+			return buffer.array();
+		}
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.duplicate().get(bytes);
+		return bytes;
+	}
+	
+	/**
+	 * @param s
+	 * @return the number of bytes that s takes when written to the socket,
+	 * in the modified UTF-8 of {@link java.io.DataOutputStream#writeUTF(String)}
+	 */
+	private static int encodedLength(String s) {
+		int length = s.length();
+		for(int i=0;i<s.length();i++) {
+			char c = s.charAt(i);
+			if(c>=0x800) length+=2;
+			else if(c>=0x80 || c==0) length+=1;
+		}
+		return length;
+	}
+
+	/**
+	 * Send any events that are waiting to be batched, e.g. before the
+	 * session is stopped.
+	 */
+	public void flush() {
+		synchronized(endpoint) {
+			flushPending=false;
+			if(pending.isEmpty()) return;
+			Message msg = pending.size()==1?pending.get(0):new EventBatchRequest(pending);
+			boolean acknowledged = pendingAcknowledged;
+			pending = new ArrayList<>();
+			pendingBytes=0;
+			pendingAcknowledged=false;
+			if(stopped) return;
+			transmit(msg,acknowledged);
+		}
+	}
+	
+	/**
+	 * Send an event or a batch of events according to the ack mode.
+	 * @param msg
+	 * @param acknowledged whether the message needs to be acknowledged
+	 */
+	private void transmit(Message msg, boolean acknowledged) {
+		if(acknowledged && ackMode==AckMode.PerEvent) {
+			synchronized(outstanding) {
+				unreplied++;
+			}
+			sendRequest(msg);
+		} else {
+			sendSequenced(msg,acknowledged);
+		}
+	}
+	
+	/**
+	 * 
+	 * @param eventName
+	 * @return true if events with this name should be acknowledged
+	 */
+	private boolean isAcknowledged(String eventName) {
+		return ackMode!=AckMode.None && !unacknowledgedEvents.contains(eventName);
+	}
+	
+	/**
+	 * Number the event and send it, making sure a deadline is set for the
+	 * oldest unacknowledged event if it needs to be acknowledged. Numbering and
+	 * sending are done together so that events go on the wire in sequence
+	 * number order.
+	 * @param msg
+	 * @param acknowledged whether the event has a deadline
+	 */
+	private void sendSequenced(Message msg, boolean acknowledged) {
+		// lock the endpoint first, as emitting on the endpoint already does
+		synchronized(endpoint) {
+			synchronized(outstanding) {
+				long seq = session.record(msg);
+				if(!acknowledged) {
+					endpoint.send(msg);
+					return;
+				}
+				outstanding.add(new long[] {seq,Instant.now().toEpochMilli()});
+				if(!deadlinePending) {
+					deadlinePending=true;
+					Utils.getInstance().setTimeout(()->{
+						checkDeadline();
+					}, eventTimeout);
+				}
+			}
+			endpoint.send(msg);
+		}
+	}
+	
+	/**
+	 * Timer callback: time out if the oldest unacknowledged event has been
+	 * outstanding for too long, otherwise check again when it is due.
+	 */
+	private void checkDeadline() {
+		long due;
+		synchronized(outstanding) {
+			long[] oldest = outstanding.peek();
+			if(stopped || oldest==null) {
+				deadlinePending=false;
+				return;
+			}
+			due = oldest[1]+eventTimeout-Instant.now().toEpochMilli();
+			if(due>0) {
+				Utils.getInstance().setTimeout(()->{
+					checkDeadline();
+				}, due);
+				return;
+			}
+			deadlinePending=false;
+		}
+		manager.endpointTimedOut(endpoint, this);
+	}
+	
+	/**
+	 * Receiver side: note a sequenced event and acknowledge it, either now
+	 * if enough events have arrived or else a little later.
+	 * @param seq
+	 * @return false if the event was received before and should be dropped
+	 */
+	private synchronized boolean eventReceived(long seq) {
+		boolean first;
+		synchronized(session) {
+			if(handedOff) return false; // the new connection will get it
+			first = session.received(seq);
+		}
+		unackedReceived++;
+		if(unackedReceived>=ackEvery) {
+			sendAck();
+		} else if(!ackPending) {
+			ackPending=true;
+			Utils.getInstance().setTimeout(()->{
+				sendAck();
+			}, ackDelay);
+		}
+		return first;
+	}
+	
+	/**
+	 * Send a cumulative acknowledgement for everything received so far.
+	 */
+	private synchronized void sendAck() {
+		ackPending=false;
+		if(stopped || unackedReceived==0) return;
+		unackedReceived=0;
+		sendReply(new EventReply(session.getHighestSeqReceived()));
+	}
+	
+	/**
+	 * Continue an earlier session on this connection. Must be called before
+	 * any events are sent.
+	 * @param session
+	 */
+	public void setSession(EventSession session) {
+		this.session=session;
+	}
+	
+	/**
+	 * 
+	 * @return the session whose events are carried on this connection
+	 */
+	public EventSession getSession() {
+		return session;
+	}
+	
+	/**
+	 * The session is being resumed on a new connection while this one has
+	 * not yet noticed that it dropped. Numbered events that this connection
+	 * has yet to take are not delivered from now on, so that they are
+	 * replayed on the new one rather than delivered twice or out of order.
+	 * @return the highest sequence number delivered on the session, where
+	 * the other side is to replay from
+	 */
+	public long handOff() {
+		synchronized(session) {
+			handedOff=true;
+			return session.getHighestSeqReceived();
+		}
+	}
+
+	/**
+	 * Send again the events of a resumed session that the other side did
+	 * not receive before the previous connection dropped.
+	 * @param lastSeq the highest sequence number the other side received
+	 * @return false if some of the missed events are no longer kept
+	 */
+	public boolean replay(long lastSeq) {
+		synchronized(endpoint) {
+			List<Message> missed = session.replayAfter(lastSeq,this);
+			if(missed==null) {
+				log.warning("events after "+lastSeq+" can no longer be replayed");
+				return false;
+			}
+			log.info("replaying "+missed.size()+" events after "+lastSeq);
+			for(Message msg : missed) {
+				if(!endpoint.send(msg)) return false;
+			}
+			return true;
+		}
+	}
+	
+	/**
+	 * 
+	 * @return when an event was last sent or received on this connection, in ms
+	 */
+	public long getLastActivity() {
+		return lastActivity;
+	}
+	
+	/**
+	 * Set how events sent on this connection are acknowledged. The other
+	 * side does not need to be told, since it only replies to events that
+	 * carry a timeout id or a sequence number.
+	 * @param ackMode
+	 */
+	public void setAckMode(AckMode ackMode) {
+		this.ackMode=ackMode;
+	}
+	
+	/**
+	 * 
+	 * @return how events sent on this connection are acknowledged
+	 */
+	public AckMode getAckMode() {
+		return ackMode;
+	}
+	
+	/**
+	 * Always send events with these names unacknowledged, on every connection.
+	 * Suitable for high rate events where a lost event is recovered by the
+	 * application anyway, or where the KeepAlive protocol is enough to detect
+	 * a dead connection.
+	 * @param eventNames
+	 */
+	public static void sendUnacknowledged(String... eventNames) {
+		for(String eventName : eventNames) {
+			unacknowledgedEvents.add(eventName);
+		}
+	}
+	
+	/**
+	 * Never hold back events with these names to be batched, on every
+	 * connection.
+	 * @param eventNames
+	 */
+	public static void sendImmediately(String... eventNames) {
+		for(String eventName : eventNames) {
+			immediateEvents.add(eventName);
+		}
+	}
+	
+	/**
+	 * Unless the session has ended cleanly, the connection has dropped and the
+	 * session may be resumed on a new one, so events waiting to be batched and
+	 * events emitted from now on are kept for replay.
+	 */
 	@Override
 	public void stopProtocol() {
-		stopped=true;
+		List<Waiter> ready = new ArrayList<>();
+		synchronized(endpoint) {
+			stopped=true;
+			synchronized(outstanding) {
+				ready.addAll(waiters);
+				waiters.clear();
+			}
+			if(exchangeInterest) endpoint.setListeningCallback(null);
+			if(session.isEnded()) {
+				allEvents.off();
+			} else {
+				session.detach(this);
+				if(!pending.isEmpty()) {
+					keep(pending.size()==1?pending.get(0):new EventBatchRequest(pending));
+					pending = new ArrayList<>();
+					pendingBytes=0;
+					pendingAcknowledged=false;
+				}
+			}
+		}
+		// after the session has been detached, so that they see it
+		runWaiters(ready);
 	}
 
 	@Override
@@ -84,24 +808,145 @@ public class EventProtocol extends Protocol implements IRequestReplyProtocol {
 
 	@Override
 	public void receiveReply(Message msg) {
-		
-		
+		long ack = ((EventReply)msg).getAck();
+		List<Waiter> ready = new ArrayList<>();
+		synchronized(outstanding) {
+			if(ack==0) {
+				// reply to a single event, the endpoint has cancelled its timeout
+				if(unreplied>0) unreplied--;
+			}
+			while(!outstanding.isEmpty() && outstanding.peek()[0]<=ack) {
+				outstanding.poll();
+			}
+			int count = outstanding.size()+unreplied;
+			waiters.removeIf((waiter)->waiter.maxOutstanding>=count && ready.add(waiter));
+		}
+		if(ack!=0) session.acknowledged(ack);
+		runWaiters(ready);
+	}
+	
+	/**
+	 * Run the callbacks of waiters on the timer thread.
+	 * @param ready
+	 */
+	private static void runWaiters(List<Waiter> ready) {
+		for(Waiter waiter : ready) {
+			Utils.getInstance().setTimeout(waiter.callback, 0);
+		}
+	}
+	
+	/**
+	 * Run a callback, on the timer thread, once at most maxOutstanding
+	 * events sent on this connection are waiting to be acknowledged, or
+	 * straight away if that is already so. Events are outstanding until they
+	 * are acknowledged, cumulatively or with a reply each. Events that are
+	 * sent without acknowledgement are never outstanding, so their sender is
+	 * paced only by the socket. If the protocol has stopped, or stops
+	 * while the callback is waiting, then the callback is run straight away,
+	 * so that the sender can see {@link #stopped} and e.g. carry on when the
+	 * session is resumed, see {@link EventSession#getCarrier()}.
+	 * @param maxOutstanding
+	 * @param callback
+	 */
+	public void whenAcknowledged(int maxOutstanding, ICallback callback) {
+		synchronized(outstanding) {
+			if(!stopped && outstanding.size()+unreplied>maxOutstanding) {
+				waiters.add(new Waiter(maxOutstanding,callback));
+				return;
+			}
+		}
+		Utils.getInstance().setTimeout(callback, 0);
+	}
+	
+	/**
+	 * 
+	 * @return the number of events sent on this connection that are
+	 * waiting to be acknowledged
+	 */
+	public int getOutstanding() {
+		synchronized(outstanding) {
+			return outstanding.size()+unreplied;
+		}
 	}
 
 	@Override
 	public void receiveRequest(Message msg) {
 		if(stopped)return;
+		lastActivity = Instant.now().toEpochMilli();
 		
-		EventRequest eventRequest = (EventRequest)msg;
-		endpoint.sendAndCancelTimeout(new EventReply(), msg);
-		System.out.println("Event recieved:"+eventRequest.getEventName()+eventRequest.getEventData());
-		endpoint.localEmit(eventRequest.getEventName(),eventRequest.getEventData());	
+		// events without a timeout id or sequence number were sent unacknowledged
+		if(msg.getTimeoutId()!=0) {
+			endpoint.sendAndCancelTimeout(new EventReply(), msg);
+		} else if(msg.getSeq()!=0) {
+			// already delivered on the connection before a resume
+			if(!eventReceived(msg.getSeq())) return;
+		}
+		if(msg instanceof EventBatchRequest) {
+			for(EventRequest event : ((EventBatchRequest)msg).getEventRequests()) {
+				deliverEvent(event);
+			}
+		} else {
+			deliverEvent((EventRequest)msg);
+		}
+	}
+	
+	/**
+	 * Emit a received event locally on the endpoint.
+	 * @param eventRequest
+	 */
+	private void deliverEvent(EventRequest eventRequest) {
+		String eventName = eventRequest.getEventName();
+		if(eventName.equals(interest)) {
+			receiveInterest(eventRequest.getEventData());
+			return;
+		}
+		if(!admit(eventName)) return;
+		// names that were never listened to are not kept as keys
+		EventKey<Object> key = EventKey.lookup(eventName);
+		if(key==null) {
+			log.fine("no callbacks for event: "+eventName);
+			return;
+		}
+		receivedEvent = eventRequest;
+		try {
+			if(eventRequest.getEventPayload()!=null) {
+				endpoint.localEmit(key,eventRequest.getEventPayload());
+			} else {
+				endpoint.localEmit(key,eventRequest.getEventData());
+			}
+		} finally {
+			receivedEvent = null;
+		}
+	}
+	
+	/**
+	 * The event being delivered to the callbacks on the endpoint, e.g. so that
+	 * a callback can relay it to other endpoints with {@link EventRequest#relay(String)}
+	 * without encoding its data again. Only callbacks of the event, on the
+	 * thread that delivers it, see it.
+	 * @return the event being delivered, or null if there is none
+	 */
+	public EventRequest getReceivedEvent() {
+		return receivedEvent;
 	}
 
+	/**
+	 * Check an event received against the rate limits of the endpoint,
+	 * telling the other side if it is rejected. The event has already been
+	 * acknowledged, it is received but not delivered.
+	 * @param eventName
+	 * @return true if the event should be delivered
+	 */
+	private boolean admit(String eventName) {
+		if(endpoint.admitEvent(eventName)) return true;
+		log.info("rejected event over its rate limit: "+eventName);
+		if(!stopped) sendEvent(rateLimited,eventName);
+		return false;
+	}
+	
 	@Override
 	public void sendReply(Message msg)  {
-		
-		
+		endpoint.send(msg);
 	}
 	
 	@Override
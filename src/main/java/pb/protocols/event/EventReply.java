@@ -11,8 +11,30 @@ public class EventReply extends Message {
 		super(name, EventProtocol.protocolName, Message.Type.Reply);
 	}
 
+	/**
+	 * A cumulative acknowledgement of every event up to and including
+	 * the given sequence number.
+	 * @param ack
+	 */
+	public EventReply(long ack) {
+		super(name, EventProtocol.protocolName, Message.Type.Reply);
+		doc.append("ack", ack);
+	}
+
 	public EventReply(Document doc) throws InvalidMessage {
-		super(name,EventProtocol.protocolName,Message.Type.Reply,doc); // really just testing the name, otherwise nothing more to test
+		super(name,EventProtocol.protocolName,Message.Type.Reply,doc);
+		if(doc.containsKey("ack")) Message.validateLongType("ack", doc);
 		this.doc=doc;
 	}
+	
+	/**
+	 * 
+	 * @return the sequence number acknowledged by this reply, or 0 if it
+	 * is a reply to a single event
+	 */
+	public long getAck() {
+		if(doc.containsKey("ack"))
+			return doc.getLong("ack");
+		else return 0;
+	}
 }
@@ -1,16 +1,104 @@
 package pb.protocols.event;
 
+import java.util.Map;
+
 import pb.protocols.Document;
 import pb.protocols.InvalidMessage;
 import pb.protocols.Message;
+import pb.protocols.RawJson;
 
 public class EventRequest extends Message {
 	static final public String name = "EventRequest";
 	
+	/**
+	 * Separates the leading fields of event data that make up its header,
+	 * see {@link #relay(String)}.
+	 */
+	static final public String headerSeparator = "%";
+	
+	/**
+	 * The event of a request being sent, which is kept out of the doc. It
+	 * is encoded once, as the JSON members that are spliced into the
+	 * message, so that the same event can be sent on many connections
+	 * while only their sequence numbers and timeouts are encoded again.
+	 * All null for a received request.
+	 */
+	private final String eventName;
+	private final String eventData;
+	private final String encodedEvent;
+	
+	/**
+	 * The batch that a received event came in and its place in it, or null.
+	 */
+	private final EventBatchRequest batch;
+	private final int batchIndex;
+	
 	public EventRequest(String eventName, String eventData) {
 		super(name, EventProtocol.protocolName, Message.Type.Request);
-		doc.append("eventName", eventName);
-		doc.append("eventData", eventData);
+		this.eventName=eventName;
+		this.eventData=eventData;
+		this.encodedEvent=encode(eventName,eventData);
+		this.batch=null;
+		this.batchIndex=0;
+	}
+
+	/**
+	 * An event whose data is binary. The bytes are carried as the message
+	 * payload and the String event data is left empty.
+	 * @param eventName
+	 * @param eventPayload
+	 */
+	public EventRequest(String eventName, byte[] eventPayload) {
+		this(eventName,"");
+		setPayload(eventPayload);
+	}
+	
+	/**
+	 * A copy of an event to be sent on another connection, sharing its
+	 * encoding and payload but numbered separately.
+	 * @param event an event being sent
+	 */
+	public EventRequest(EventRequest event) {
+		super(name, EventProtocol.protocolName, Message.Type.Request);
+		this.eventName=event.getEventName();
+		this.eventData=event.getEventData();
+		this.encodedEvent=event.encodedEvent!=null?event.encodedEvent:encode(eventName,eventData);
+		this.batch=null;
+		this.batchIndex=0;
+		if(event.getPayload()!=null) setPayload(event.getPayload());
+	}
+	
+	/**
+	 * An event to be sent that was encoded already.
+	 * @param eventName
+	 * @param eventData
+	 * @param encodedEvent
+	 * @param eventPayload binary event data or null
+	 */
+	private EventRequest(String eventName, String eventData, String encodedEvent, byte[] eventPayload) {
+		super(name, EventProtocol.protocolName, Message.Type.Request);
+		this.eventName=eventName;
+		this.eventData=eventData;
+		this.encodedEvent=encodedEvent;
+		this.batch=null;
+		this.batchIndex=0;
+		if(eventPayload!=null) setPayload(eventPayload);
+	}
+	
+	/**
+	 * An event received in a batch.
+	 * @param eventName
+	 * @param eventData
+	 * @param batch
+	 * @param batchIndex the place of the event in the batch
+	 */
+	EventRequest(String eventName, String eventData, EventBatchRequest batch, int batchIndex) {
+		super(name, EventProtocol.protocolName, Message.Type.Request);
+		this.eventName=eventName;
+		this.eventData=eventData;
+		this.encodedEvent=null;
+		this.batch=batch;
+		this.batchIndex=batchIndex;
 	}
 
 	public EventRequest(Document doc) throws InvalidMessage {
@@ -18,13 +106,127 @@ public class EventRequest extends Message {
 		Message.validateStringType("eventName", doc);
 		Message.validateStringType("eventData", doc);
 		this.doc=doc;
+		this.eventName=null;
+		this.eventData=null;
+		this.encodedEvent=null;
+		this.batch=null;
+		this.batchIndex=0;
+	}
+	
+	/**
+	 * @param eventName
+	 * @param eventData
+	 * @return the event as JSON object members, without the braces
+	 */
+	private static String encode(String eventName, String eventData) {
+		Document eventDoc = new Document();
+		eventDoc.append("eventName", eventName);
+		eventDoc.append("eventData", eventData);
+		String json = eventDoc.toJson();
+		return json.substring(1,json.length()-1);
+	}
+	
+	/**
+	 * @return the event as JSON object members, without the braces, or null
+	 * for a received request
+	 */
+	String getEncodedEvent() {
+		return encodedEvent;
+	}
+	
+	/**
+	 * Make an event to send on another connection with the same name and
+	 * data, reusing the data as it was encoded when the event was received,
+	 * or made, rather than encoding it again. A received event can be relayed
+	 * from a callback for it, see {@link EventProtocol#getReceivedEvent()}.
+	 * @return a new event to send, which can be copied for more connections
+	 * with {@link #EventRequest(EventRequest)}
+	 */
+	public EventRequest relay() {
+		return relay(null);
+	}
+	
+	/**
+	 * Make an event to send on another connection, as for {@link #relay()},
+	 * with the header of its data replaced. The header is the leading fields
+	 * of the data, separated by {@link #headerSeparator}, e.g. the board name
+	 * and version of "host:port:board%3%path", and is replaced field for field
+	 * by the new header, e.g. "host:port:board%4", while the rest of the data
+	 * is passed on still encoded. If the data has no more fields than the new
+	 * header then all of it is replaced.
+	 * @param header the new header, or null to keep the data as it is
+	 * @return a new event to send
+	 */
+	public EventRequest relay(String header) {
+		String[] encoded = getEncodedMembers();
+		if(header==null) {
+			return new EventRequest(getEventName(),getEventData(),
+					"\"eventName\":"+encoded[0]+",\"eventData\":"+encoded[1],getPayload());
+		}
+		int fields = 0;
+		for(int i=header.indexOf(headerSeparator);i>=0;i=header.indexOf(headerSeparator,i+1)) fields++;
+		// the separator is never escaped, so it is found the same way in both
+		int rest = nthSeparator(getEventData(),fields+1);
+		int encodedRest = nthSeparator(encoded[1],fields+1);
+		String eventData = rest<0?header:header+getEventData().substring(rest);
+		String quoted = RawJson.quote(header);
+		String encodedData = encodedRest<0?quoted:quoted.substring(0,quoted.length()-1)+encoded[1].substring(encodedRest);
+		return new EventRequest(getEventName(),eventData,
+				"\"eventName\":"+encoded[0]+",\"eventData\":"+encodedData,getPayload());
+	}
+	
+	/**
+	 * @param s
+	 * @param n
+	 * @return the index of the nth header separator in s, or -1 if it has fewer
+	 */
+	private static int nthSeparator(String s, int n) {
+		int i = -1;
+		while(n-->0) {
+			i = s.indexOf(headerSeparator,i+1);
+			if(i<0) return -1;
+		}
+		return i;
+	}
+	
+	/**
+	 * @return the event name and data as they were encoded, as JSON strings
+	 * with their quotes
+	 */
+	private String[] getEncodedMembers() {
+		Map<String,String> members;
+		if(encodedEvent!=null) {
+			members = RawJson.members("{"+encodedEvent+"}");
+		} else if(batch!=null) {
+			members = RawJson.members(batch.getReceivedEvent(batchIndex));
+		} else if(getReceivedJson()!=null) {
+			members = RawJson.members(getReceivedJson());
+		} else {
+			return new String[] {RawJson.quote(getEventName()),RawJson.quote(getEventData())};
+		}
+		return new String[] {members.get("eventName"),members.get("eventData")};
+	}
+	
+	@Override
+	public String toJsonString() {
+		if(encodedEvent==null) return super.toJsonString();
+		String header = doc.toJson();
+		return header.substring(0,header.length()-1)+","+encodedEvent+"}";
 	}
 	
 	public String getEventName() {
-		return doc.getString("eventName");
+		return eventName!=null?eventName:doc.getString("eventName");
 	}
 	
 	public String getEventData() {
-		return doc.getString("eventData");
+		return eventData!=null?eventData:doc.getString("eventData");
+	}
+	
+	/**
+	 * 
+	 * @return the binary event data or null if the event data is a String
+	 */
+	public byte[] getEventPayload() {
+		return getPayload();
 	}
 }
@@ -0,0 +1,242 @@
+package pb.protocols.event;
+
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import pb.protocols.Message;
+
+/**
+ * The state of the event stream of a session, in both directions, that
+ * outlives any single connection. Events sent are numbered and kept in a
+ * bounded replay buffer until the other side acknowledges them, so that if the
+ * connection drops and the session is resumed on a new connection, the events
+ * that the other side missed can be sent again. The highest sequence number
+ * received is kept so that the other side can be told where to resume from,
+ * and so that events received twice are dropped.
+ *
+ * @see {@link pb.protocols.event.EventProtocol}
+ * @see {@link pb.protocols.session.SessionProtocol}
+ * @author aaron
+ *
+ */
+public class EventSession {
+
+	/**
+	 * Default number of unacknowledged messages kept for replay.
+	 */
+	public static final int defaultReplayCapacity = 1024;
+
+	/**
+	 * The session id, presented by the client when resuming.
+	 */
+	private final String sessionId;
+
+	/**
+	 * Most messages kept for replay, the oldest are dropped first.
+	 */
+	private final int replayCapacity;
+
+	/**
+	 * Sequence number for the next event sent.
+	 */
+	private long nextSeq = 1;
+
+	/**
+	 * Highest sequence number received.
+	 */
+	private long highestSeqReceived = 0;
+
+	/**
+	 * Messages sent and not yet acknowledged, oldest first, with contiguous
+	 * sequence numbers ending at nextSeq-1.
+	 */
+	private final ArrayDeque<Message> replay = new ArrayDeque<>();
+
+	/**
+	 * Whether the session is currently running on a connection.
+	 */
+	private boolean attached = true;
+
+	/**
+	 * When the session was last detached from a connection.
+	 */
+	private long detachedAt = 0;
+
+	/**
+	 * Whether the session has ended and will not be resumed.
+	 */
+	private boolean ended = false;
+	
+	/**
+	 * The event protocol that the session was resumed on, once it has
+	 * replayed the missed events, so that events emitted on an earlier
+	 * endpoint of the session can be passed on to it.
+	 */
+	private EventProtocol carrier = null;
+
+	/**
+	 * A new session with a random id.
+	 */
+	public EventSession() {
+		this(UUID.randomUUID().toString(),defaultReplayCapacity);
+	}
+
+	/**
+	 * A session with a given id, e.g. the one the server gave us.
+	 * @param sessionId
+	 * @param replayCapacity
+	 */
+	public EventSession(String sessionId, int replayCapacity) {
+		this.sessionId=sessionId;
+		this.replayCapacity=replayCapacity;
+	}
+
+	/**
+	 *
+	 * @return the session id
+	 */
+	public String getSessionId() {
+		return sessionId;
+	}
+
+	/**
+	 * Number a message that could not be sent because the connection has
+	 * gone, and keep it for replay, but only while the session is waiting to
+	 * be resumed, including while it is being resumed but has not yet
+	 * replayed.
+	 * @param msg
+	 * @return false if the session has ended or has been resumed, see
+	 * {@link #getCarrier()}
+	 */
+	public synchronized boolean recordIfDetached(Message msg) {
+		if(ended || carrier!=null) return false;
+		record(msg);
+		return true;
+	}
+	
+	/**
+	 * 
+	 * @return the event protocol the session has been resumed on, or null
+	 * if it has not been resumed
+	 */
+	public synchronized EventProtocol getCarrier() {
+		return carrier;
+	}
+
+	/**
+	 * Number a message that is about to be sent and keep it for replay.
+	 * @param msg
+	 * @return the sequence number given to the message
+	 */
+	public synchronized long record(Message msg) {
+		long seq = nextSeq++;
+		msg.setSeq(seq);
+		replay.add(msg);
+		if(replay.size()>replayCapacity) replay.poll();
+		return seq;
+	}
+
+	/**
+	 * The other side has received everything up to and including ack, so
+	 * those messages need not be kept any longer.
+	 * @param ack
+	 */
+	public synchronized void acknowledged(long ack) {
+		while(!replay.isEmpty() && replay.peek().getSeq()<=ack) {
+			replay.poll();
+		}
+	}
+
+	/**
+	 * Note that a numbered message was received.
+	 * @param seq
+	 * @return false if the message was already received, e.g. on the
+	 * connection before a resume, and should be dropped
+	 */
+	public synchronized boolean received(long seq) {
+		if(seq<=highestSeqReceived) return false;
+		highestSeqReceived=seq;
+		return true;
+	}
+
+	/**
+	 *
+	 * @return the highest sequence number received
+	 */
+	public synchronized long getHighestSeqReceived() {
+		return highestSeqReceived;
+	}
+
+	/**
+	 *
+	 * @param lastSeq the highest sequence number the other side has received
+	 * @return true if every message after lastSeq is still kept for replay
+	 */
+	public synchronized boolean canReplayAfter(long lastSeq) {
+		return !ended && lastSeq<nextSeq && lastSeq>=nextSeq-1-replay.size();
+	}
+
+	/**
+	 * The session has been resumed on a new connection, take the messages
+	 * to replay on it. From now on messages are not kept for replay while
+	 * detached, they are passed on to the carrier instead.
+	 * @param lastSeq the highest sequence number the other side has received
+	 * @param carrier the event protocol of the new connection
+	 * @return the messages sent after lastSeq, in order, or null if some of
+	 * them are no longer kept
+	 */
+	public synchronized List<Message> replayAfter(long lastSeq, EventProtocol carrier) {
+		this.carrier=carrier;
+		if(!canReplayAfter(lastSeq)) return null;
+		acknowledged(lastSeq);
+		return new ArrayList<>(replay);
+	}
+
+	/**
+	 * The connection the session was running on has gone. This is ignored
+	 * if the session has already been resumed on another connection.
+	 * @param protocol the event protocol of the connection that has gone
+	 */
+	public synchronized void detach(EventProtocol protocol) {
+		if(carrier!=null && carrier!=protocol) return;
+		carrier=null;
+		attached=false;
+		detachedAt=Instant.now().toEpochMilli();
+	}
+
+	/**
+	 * The session has ended, either cleanly or because it was not resumed in
+	 * time, and its events need not be kept.
+	 */
+	public synchronized void end() {
+		ended=true;
+		replay.clear();
+	}
+
+	/**
+	 *
+	 * @return true if the session has ended
+	 */
+	public synchronized boolean isEnded() {
+		return ended;
+	}
+
+	/**
+	 * The session is running on a new connection.
+	 */
+	public synchronized void attach() {
+		attached=true;
+	}
+
+	/**
+	 *
+	 * @param timeout
+	 * @return true if the session has been detached for longer than timeout ms
+	 */
+	public synchronized boolean hasExpired(long timeout) {
+		return ended || (!attached && Instant.now().toEpochMilli()-detachedAt>=timeout);
+	}
+}
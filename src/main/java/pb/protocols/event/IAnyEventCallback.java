@@ -0,0 +1,26 @@
+package pb.protocols.event;
+
+/**
+ * A callback for the special event "*" that is given the name and the
+ * argument of each event as they are, rather than in a new array, see
+ * {@link pb.utils.Eventable#emit(pb.utils.EventKey, Object)}.
+ */
+@FunctionalInterface
+public interface IAnyEventCallback extends IEventCallback {
+	/**
+	 * Handle an event with a single argument
+	 * @param eventName
+	 * @param arg
+	 */
+	public void callback(String eventName, Object arg);
+
+	/**
+	 * Handle an event with other than a single argument, args[0] is the
+	 * event name. Such events are ignored unless this is overridden.
+	 * @param args
+	 */
+	@Override
+	public default void callback(Object... args) {
+		if(args.length==2) callback((String) args[0],args[1]);
+	}
+}
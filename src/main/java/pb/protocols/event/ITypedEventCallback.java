@@ -0,0 +1,10 @@
+package pb.protocols.event;
+
+@FunctionalInterface
+public interface ITypedEventCallback<T> {
+	/**
+	 * Handle an event with a single typed argument
+	 * @param arg
+	 */
+	public void callback(T arg);
+}
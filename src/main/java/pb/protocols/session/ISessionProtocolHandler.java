@@ -1,6 +1,7 @@
 package pb.protocols.session;
 
 import pb.managers.endpoint.Endpoint;
+import pb.protocols.event.EventSession;
 
 public interface ISessionProtocolHandler {
 	/**
@@ -14,4 +15,15 @@ public interface ISessionProtocolHandler {
 	 * @param endpoint
 	 */
 	public void sessionStopped(Endpoint endpoint);
+	
+	/**
+	 * The other side has asked to resume an earlier session on a new
+	 * connection.
+	 * @param endpoint
+	 * @param sessionId the id of the session to resume
+	 * @param lastSeq the highest event sequence number the other side received
+	 * @return the session to resume, or null if it is unknown or can't be
+	 * resumed, in which case a new session is started instead
+	 */
+	public EventSession sessionResuming(Endpoint endpoint, String sessionId, long lastSeq);
 }
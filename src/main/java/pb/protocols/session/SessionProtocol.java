@@ -1,11 +1,16 @@
 package pb.protocols.session;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Logger;
 
 import pb.managers.Manager;
 import pb.managers.endpoint.Endpoint;
 import pb.protocols.Message;
 import pb.protocols.Protocol;
+import pb.protocols.event.EventProtocol;
+import pb.protocols.event.EventSession;
+import pb.protocols.keepalive.KeepAliveProtocol;
 import pb.utils.Utils;
 import pb.protocols.IRequestReplyProtocol;
 
@@ -18,6 +23,19 @@ import pb.protocols.IRequestReplyProtocol;
  * session stop request to the client if it wants (needs) to stop the session,
  * e.g. perhaps the server is becoming overloaded and needs to shed some
  * clients.
+ * <br/>
+ * Each session has an id and an {@link pb.protocols.event.EventSession} that
+ * outlives the connection. A client that reconnects after the connection
+ * dropped presents the id and the highest event sequence number it received,
+ * and if the server still has the session the reply says it was resumed and
+ * gives the highest sequence number the server received, so that each side
+ * can replay just the events the other missed.
+ * <br/>
+ * The start request also carries the capabilities of the client and the
+ * protocols it wants to run, and the reply confirms the ones chosen, so that
+ * the session is fully set up after a single round trip. A side that does not
+ * say what it supports is taken to support none of the capabilities, i.e. to
+ * speak the original protocols, and to want all of the protocols.
  * 
  * @see {@link pb.managers.Manager}
  * @see {@link pb.managers.endpoint.Endpoint}
@@ -38,6 +56,41 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 	 */
 	public static final String protocolName="SessionProtocol";
 	
+	/**
+	 * Capability to number events and acknowledge them cumulatively, rather
+	 * than reply to each one.
+	 */
+	public static final String cumulativeAck="cumulativeAck";
+	
+	/**
+	 * Capability to coalesce events into batches.
+	 */
+	public static final String eventBatch="eventBatch";
+	
+	/**
+	 * Capability to tell the other side which events have callbacks, so
+	 * that events nothing would handle are not sent.
+	 */
+	public static final String eventInterest="eventInterest";
+	
+	/**
+	 * Capability to send repeated header values once per connection and then
+	 * refer to them by number, see {@link pb.protocols.HeaderTable}.
+	 */
+	public static final String headerTable="headerTable";
+	
+	/**
+	 * The capabilities supported by this side.
+	 */
+	public static final List<String> supportedCapabilities=List.of(cumulativeAck,eventBatch,eventInterest,
+			headerTable);
+	
+	/**
+	 * The protocols that may be started with the session.
+	 */
+	public static final List<String> supportedProtocols=List.of(KeepAliveProtocol.protocolName,
+			EventProtocol.protocolName);
+	
 	/**
 	 * Default request timeout
 	 */
@@ -57,6 +110,44 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 	 */
 	private volatile boolean stopped=false;
 	
+	/**
+	 * The event stream of the session, set when the session starts or, on
+	 * the client, beforehand when asking to resume.
+	 */
+	private volatile EventSession eventSession=null;
+	
+	/**
+	 * Whether the session is a resumed one.
+	 */
+	private volatile boolean resumed=false;
+	
+	/**
+	 * The highest event sequence number the other side received on the
+	 * session, when it is a resumed one.
+	 */
+	private volatile long peerLastSeq=0;
+	
+	/**
+	 * The protocols asked for, when started as a client.
+	 */
+	private volatile List<String> wantedProtocols=supportedProtocols;
+	
+	/**
+	 * The capabilities chosen for the session.
+	 */
+	private volatile List<String> capabilities=List.of();
+	
+	/**
+	 * The protocols started with the session.
+	 */
+	private volatile List<String> protocols=supportedProtocols;
+	
+	/**
+	 * The ms the other side asked us to wait before connecting again, when
+	 * it stopped the session.
+	 */
+	private volatile long retryAfter=0;
+	
 	/**
 	 * Initialise the protocol with an endpoint and manager.
 	 * @param endpoint
@@ -98,7 +189,96 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 	@Override
 	public void startAsClient() {
 		//  send the server a start session request
-		sendRequest(new SessionStartRequest());
+		if(eventSession!=null) {
+			sendRequest(new SessionStartRequest(eventSession.getSessionId(),
+					eventSession.getHighestSeqReceived(),supportedCapabilities,wantedProtocols));
+		} else {
+			sendRequest(new SessionStartRequest(supportedCapabilities,wantedProtocols));
+		}
+	}
+	
+	/**
+	 * Ask for just some of the protocols to be started with the session, when
+	 * started as a client. Must be called before {@link #startAsClient()}.
+	 * @param protocols names of the protocols wanted
+	 */
+	public void setProtocols(List<String> protocols) {
+		this.wantedProtocols=protocols;
+	}
+	
+	/**
+	 * 
+	 * @param capability
+	 * @return true if the capability was chosen for the session
+	 */
+	public boolean hasCapability(String capability) {
+		return capabilities.contains(capability);
+	}
+	
+	/**
+	 * 
+	 * @param protocolName
+	 * @return true if the protocol is to be started with the session
+	 */
+	public boolean hasProtocol(String protocolName) {
+		return protocols.contains(protocolName);
+	}
+	
+	/**
+	 * Set up the event protocol of the session according to the chosen
+	 * capabilities.
+	 * @param eventProtocol
+	 */
+	public void configure(EventProtocol eventProtocol) {
+		if(hasCapability(cumulativeAck)) eventProtocol.setAckMode(EventProtocol.AckMode.Cumulative);
+		if(!hasCapability(eventBatch)) eventProtocol.batchWindow=0;
+		eventProtocol.exchangeInterest=hasCapability(eventInterest);
+	}
+	
+	/**
+	 * 
+	 * @param offered
+	 * @param supported
+	 * @return the names in both lists, in the order they were offered
+	 */
+	private static List<String> choose(List<String> offered, List<String> supported) {
+		List<String> chosen = new ArrayList<>(offered);
+		chosen.retainAll(supported);
+		return chosen;
+	}
+	
+	/**
+	 * Ask to resume an earlier session, rather than start a new one, when
+	 * started as a client. Must be called before {@link #startAsClient()}.
+	 * @param eventSession the session to resume
+	 */
+	public void resumeSession(EventSession eventSession) {
+		this.eventSession=eventSession;
+	}
+	
+	/**
+	 * 
+	 * @return the event stream of the session, once it has started
+	 */
+	public EventSession getEventSession() {
+		return eventSession;
+	}
+	
+	/**
+	 * 
+	 * @return true if an earlier session was resumed
+	 */
+	public boolean isResumed() {
+		return resumed;
+	}
+	
+	/**
+	 * 
+	 * @return the highest event sequence number the other side received on
+	 * a resumed session, events after it need to be replayed
+	 */
+	public long getPeerLastSeq() {
+		return peerLastSeq;
 	}
 
 	/**
@@ -118,9 +298,38 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 	 * Generic stop session call, for either client or server.
 	 */
 	public void stopSession() {
+		flushEvents();
 		sendRequest(new SessionStopRequest());
 	}
 	
+	/**
+	 * Stop the session and ask the other side to connect again after a
+	 * while, e.g. when the server is about to restart.
+	 * @param retryAfter ms the other side should wait before connecting again
+	 */
+	public void stopSession(long retryAfter) {
+		flushEvents();
+		sendRequest(new SessionStopRequest(retryAfter));
+	}
+	
+	/**
+	 * 
+	 * @return the ms the other side asked us to wait before connecting
+	 * again, or 0 if it did not ask us to come back
+	 */
+	public long getRetryAfter() {
+		return retryAfter;
+	}
+	
+	/**
+	 * Make sure that events waiting to be batched are sent before the
+	 * session stops.
+	 */
+	private void flushEvents() {
+		EventProtocol eventProtocol = (EventProtocol) endpoint.getProtocol(EventProtocol.protocolName);
+		if(eventProtocol!=null) eventProtocol.flush();
+	}
+	
 	/**
 	 * Just send a request, nothing special.
 	 * @param msg
@@ -150,6 +359,22 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 				return;
 			}
 			protocolRunning=true;
+			SessionStartReply reply = (SessionStartReply) msg;
+			capabilities=reply.getCapabilities()!=null?
+					choose(reply.getCapabilities(),supportedCapabilities):List.of();
+			if(hasCapability(headerTable)) endpoint.startHeaderTable();
+			protocols=reply.getProtocols()!=null?
+					choose(reply.getProtocols(),wantedProtocols):wantedProtocols;
+			if(eventSession!=null && reply.isResumed()
+					&& eventSession.getSessionId().equals(reply.getSessionId())) {
+				resumed=true;
+				peerLastSeq=reply.getLastSeq();
+				eventSession.attach();
+			} else if(reply.getSessionId()!=null) {
+				eventSession=new EventSession(reply.getSessionId(),EventSession.defaultReplayCapacity);
+			} else {
+				eventSession=new EventSession();
+			}
 			((ISessionProtocolHandler)manager).sessionStarted(endpoint);
 		} else if(msg instanceof SessionStopReply) {
 			if(!protocolRunning) {
@@ -158,6 +383,7 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 				return;
 			}
 			protocolRunning=false;
+			if(eventSession!=null) eventSession.end();
 			((ISessionProtocolHandler)manager).sessionStopped(endpoint);
 		}
 	}
@@ -178,7 +404,26 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 				return;
 			}
 			protocolRunning=true;
-			endpoint.sendAndCancelTimeout(new SessionStartReply(),msg);
+			SessionStartRequest request = (SessionStartRequest) msg;
+			capabilities=request.getCapabilities()!=null?
+					choose(request.getCapabilities(),supportedCapabilities):List.of();
+			// the client offered it, so it can read the reply that way already
+			if(hasCapability(headerTable)) endpoint.startHeaderTable();
+			protocols=request.getProtocols()!=null?
+					choose(request.getProtocols(),supportedProtocols):supportedProtocols;
+			if(request.getSessionId()!=null) {
+				eventSession=((ISessionProtocolHandler)manager).sessionResuming(endpoint,
+						request.getSessionId(),request.getLastSeq());
+			}
+			if(eventSession!=null) {
+				resumed=true;
+				peerLastSeq=request.getLastSeq();
+				eventSession.attach();
+			} else {
+				eventSession=new EventSession();
+			}
+			endpoint.sendAndCancelTimeout(new SessionStartReply(eventSession.getSessionId(),
+					resumed,eventSession.getHighestSeqReceived(),capabilities,protocols),msg);
 			((ISessionProtocolHandler)manager).sessionStarted(endpoint);
 		} else if(msg instanceof SessionStopRequest) {
 			if(!protocolRunning) {
@@ -187,6 +432,9 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 				return;
 			}
 			protocolRunning=false;
+			retryAfter=((SessionStopRequest)msg).getRetryAfter();
+			flushEvents();
+			if(eventSession!=null) eventSession.end();
 			endpoint.sendAndCancelTimeout(new SessionStopReply(),msg);
 			((ISessionProtocolHandler)manager).sessionStopped(endpoint);
 		}
@@ -1,5 +1,8 @@
 package pb.protocols.session;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import pb.protocols.Document;
 import pb.protocols.InvalidMessage;
 import pb.protocols.Message;
@@ -14,11 +17,21 @@ public class SessionStartReply extends Message {
 	static final public String name = "SessionStartReply";
 	
 	/**
-	 * Initialiser when given message parameters explicitly. Note that
-	 * in this message there are no additional parameters.
+	 * Initialiser when given message parameters explicitly.
+	 * @param sessionId the id of the session that has started
+	 * @param resumed whether an earlier session was resumed
+	 * @param lastSeq the highest event sequence number received on the session
+	 * @param capabilities the capabilities chosen for the session
+	 * @param protocols the protocols started with the session
 	 */
-	public SessionStartReply() {
+	public SessionStartReply(String sessionId, boolean resumed, long lastSeq,
+			List<String> capabilities, List<String> protocols) {
 		super(name,SessionProtocol.protocolName,Message.Type.Reply);
+		doc.append("sessionId", sessionId);
+		doc.append("resumed", resumed);
+		doc.append("lastSeq", lastSeq);
+		doc.append("capabilities", new ArrayList<>(capabilities));
+		doc.append("protocols", new ArrayList<>(protocols));
 	}
 	
 	/**
@@ -29,7 +42,60 @@ public class SessionStartReply extends Message {
 	 * @throws InvalidMessage when the doc does not contain all of the required parameters
 	 */
 	public SessionStartReply(Document doc) throws InvalidMessage {
-		super(name,SessionProtocol.protocolName,Message.Type.Reply,doc); // really just testing the name, otherwise nothing more to test
+		super(name,SessionProtocol.protocolName,Message.Type.Reply,doc);
+		if(doc.containsKey("sessionId")) {
+			Message.validateStringType("sessionId", doc);
+			Message.validateLongType("lastSeq", doc);
+			if(!(doc.get("resumed") instanceof Boolean)) throw new InvalidMessage();
+		}
+		if(doc.containsKey("capabilities")) Message.validateStringListType("capabilities", doc);
+		if(doc.containsKey("protocols")) Message.validateStringListType("protocols", doc);
 		this.doc=doc;
 	}
+	
+	/**
+	 * 
+	 * @return the id of the session, or null if the other side did not give one
+	 */
+	public String getSessionId() {
+		if(doc.containsKey("sessionId"))
+			return doc.getString("sessionId");
+		else return null;
+	}
+	
+	/**
+	 * 
+	 * @return true if an earlier session was resumed
+	 */
+	public boolean isResumed() {
+		return doc.containsKey("resumed") && doc.getBoolean("resumed");
+	}
+	
+	/**
+	 * 
+	 * @return the highest event sequence number received on the session
+	 */
+	public long getLastSeq() {
+		if(doc.containsKey("lastSeq"))
+			return doc.getLong("lastSeq");
+		else return 0;
+	}
+	
+	/**
+	 * 
+	 * @return the capabilities chosen for the session, or null if the server
+	 * did not say, in which case none were chosen
+	 */
+	public List<String> getCapabilities() {
+		return getStringList("capabilities");
+	}
+	
+	/**
+	 * 
+	 * @return the protocols started with the session, or null if the server
+	 * did not say, in which case all of them were
+	 */
+	public List<String> getProtocols() {
+		return getStringList("protocols");
+	}
 }
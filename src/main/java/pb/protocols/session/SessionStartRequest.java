@@ -1,5 +1,8 @@
 package pb.protocols.session;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import pb.protocols.Document;
 import pb.protocols.InvalidMessage;
 import pb.protocols.Message;
@@ -21,6 +24,33 @@ public class SessionStartRequest extends Message {
 		super(name,SessionProtocol.protocolName,Message.Type.Request);
 	}
 	
+	/**
+	 * Initialiser for a request that offers the capabilities of the client
+	 * and the protocols it wants to run, so that the session is fully set up
+	 * by the reply.
+	 * @param capabilities the capabilities the client supports
+	 * @param protocols the protocols the client wants to start with the session
+	 */
+	public SessionStartRequest(List<String> capabilities, List<String> protocols) {
+		this();
+		doc.append("capabilities", new ArrayList<>(capabilities));
+		doc.append("protocols", new ArrayList<>(protocols));
+	}
+	
+	/**
+	 * Initialiser for a request to resume an earlier session.
+	 * @param sessionId the id of the session to resume
+	 * @param lastSeq the highest event sequence number received on the session
+	 * @param capabilities the capabilities the client supports
+	 * @param protocols the protocols the client wants to start with the session
+	 */
+	public SessionStartRequest(String sessionId, long lastSeq, List<String> capabilities,
+			List<String> protocols) {
+		this(capabilities,protocols);
+		doc.append("sessionId", sessionId);
+		doc.append("lastSeq", lastSeq);
+	}
+	
 	/**
 	 * Initialiser when given message parameters in a doc. Must throw
 	 * InvalidMessag if any of the required parameters are not
@@ -30,6 +60,50 @@ public class SessionStartRequest extends Message {
 	 */
 	public SessionStartRequest(Document doc) throws InvalidMessage {
 		super(name,SessionProtocol.protocolName,Message.Type.Request,doc); // really just testing the name, otherwise nothing more to test
+		if(doc.containsKey("sessionId")) {
+			Message.validateStringType("sessionId", doc);
+			Message.validateLongType("lastSeq", doc);
+		}
+		if(doc.containsKey("capabilities")) Message.validateStringListType("capabilities", doc);
+		if(doc.containsKey("protocols")) Message.validateStringListType("protocols", doc);
 		this.doc=doc;
 	}
+	
+	/**
+	 * 
+	 * @return the id of the session to resume, or null for a new session
+	 */
+	public String getSessionId() {
+		if(doc.containsKey("sessionId"))
+			return doc.getString("sessionId");
+		else return null;
+	}
+	
+	/**
+	 * 
+	 * @return the highest event sequence number received on the session
+	 */
+	public long getLastSeq() {
+		if(doc.containsKey("lastSeq"))
+			return doc.getLong("lastSeq");
+		else return 0;
+	}
+	
+	/**
+	 * 
+	 * @return the capabilities the client supports, or null if the client
+	 * did not say, in which case it supports none of them
+	 */
+	public List<String> getCapabilities() {
+		return getStringList("capabilities");
+	}
+	
+	/**
+	 * 
+	 * @return the protocols the client wants to start, or null if the client
+	 * did not say, in which case it wants all of them
+	 */
+	public List<String> getProtocols() {
+		return getStringList("protocols");
+	}
 }
@@ -21,6 +21,16 @@ public class SessionStopRequest extends Message {
 		super(name,SessionProtocol.protocolName,Message.Type.Request);
 	}
 	
+	/**
+	 * Initialiser for a request that also tells the other side how long to
+	 * wait before connecting again, e.g. while the server restarts.
+	 * @param retryAfter ms to wait before connecting again
+	 */
+	public SessionStopRequest(long retryAfter) {
+		this();
+		doc.append("retryAfter", retryAfter);
+	}
+	
 	/**
 	 * Initialiser when given message parameters in a doc. Must throw
 	 * InvalidMessag if any of the required parameters are not
@@ -30,6 +40,18 @@ public class SessionStopRequest extends Message {
 	 */
 	public SessionStopRequest(Document doc) throws InvalidMessage {
 		super(name,SessionProtocol.protocolName,Message.Type.Request,doc); // really just testing the name, otherwise nothing more to test
+		if(doc.containsKey("retryAfter")) Message.validateLongType("retryAfter", doc);
 		this.doc=doc;
 	}
+	
+	/**
+	 * 
+	 * @return ms to wait before connecting again, or 0 if the other side
+	 * does not expect us to come back
+	 */
+	public long getRetryAfter() {
+		if(doc.containsKey("retryAfter"))
+			return doc.getLong("retryAfter");
+		else return 0;
+	}
 }
@@ -0,0 +1,223 @@
+package pb.utils;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * A file of string records that are only ever appended, written through a
+ * memory mapping so that appending a record is a copy into memory rather
+ * than a system call. Each record is its length, a CRC32 of its bytes and
+ * then its bytes in UTF-8. The file is mapped a region at a time, beyond
+ * its end, so the rest of the region reads as zeros and a length of zero
+ * marks the end of the records. A record whose checksum does not match,
+ * e.g. one that was only partly written when the machine went down, is
+ * taken as the end as well, and is written over by the next record.
+ * <p>
+ * A record is in the operating system's page cache as soon as it has been
+ * appended, so it is kept if the process is killed, while {@link #force()}
+ * writes the records to the disk so that they are also kept if the machine
+ * goes down. Writing to the disk is done outside the log's lock, so
+ * appending carries on meanwhile.
+ *
+ * @see {@link pb.IndexServer#journal}
+ * @author aaron
+ *
+ */
+public class AppendLog {
+
+	/**
+	 * Bytes mapped at a time, at least.
+	 */
+	public static final int regionSize = 4*1024*1024;
+
+	/**
+	 * Bytes before the record itself: its length and checksum.
+	 */
+	private static final int headerSize = 8;
+
+	private final Path path;
+	private final FileChannel channel;
+
+	/**
+	 * The region being appended to, and where it starts in the file.
+	 */
+	private MappedByteBuffer region = null;
+	private long regionStart = 0;
+
+	/**
+	 * The region before the one being appended to, which may not be on the
+	 * disk yet.
+	 */
+	private MappedByteBuffer previousRegion = null;
+
+	/**
+	 * Writes a region to the disk once it is full, or null to write it on
+	 * the thread that appends.
+	 */
+	private final Executor writer;
+
+	/**
+	 * Where the next record goes.
+	 */
+	private long position;
+
+	/**
+	 * Open a log to append to, creating it if there is none, after reading
+	 * the records already in it.
+	 * @param path
+	 * @param replay given each record already in the log, in order, or null
+	 * @throws IOException
+	 */
+	public AppendLog(Path path, Consumer<String> replay) throws IOException {
+		this(path, replay, null);
+	}
+
+	/**
+	 * Open a log to append to, creating it if there is none, after reading
+	 * the records already in it.
+	 * @param path
+	 * @param replay given each record already in the log, in order, or null
+	 * @param writer writes each region to the disk once it is full, so that
+	 * the append that fills it does not wait for the disk, or null to write
+	 * it during that append
+	 * @throws IOException
+	 */
+	public AppendLog(Path path, Consumer<String> replay, Executor writer) throws IOException {
+		this.path = path;
+		this.writer = writer;
+		position = read(path, replay);
+		channel = FileChannel.open(path, StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		// anything after the records was not written completely
+		if(channel.size()>position) channel.truncate(position);
+	}
+
+	/**
+	 * Read the records of a log without opening it to append to.
+	 * @param path
+	 * @param replay given each record, in order, or null
+	 * @return the length of the records, where the next one would go
+	 * @throws IOException
+	 */
+	public static long read(Path path, Consumer<String> replay) throws IOException {
+		if(!Files.exists(path)) return 0;
+		long end = 0;
+		CRC32 crc = new CRC32();
+		try(DataInputStream in = new DataInputStream(
+				new BufferedInputStream(Files.newInputStream(path), 64*1024))) {
+			long size = Files.size(path);
+			for(;;) {
+				int length = in.readInt();
+				int checksum = in.readInt();
+				if(length<=0 || length>size-end-headerSize) break;
+				byte[] bytes = new byte[length];
+				in.readFully(bytes);
+				crc.reset();
+				crc.update(bytes);
+				if((int) crc.getValue()!=checksum) break;
+				if(replay!=null) replay.accept(new String(bytes, StandardCharsets.UTF_8));
+				end += headerSize+length;
+			}
+		} catch (EOFException e) {
+			// the last record was not written completely
+		}
+		return end;
+	}
+
+	/**
+	 * Append a record.
+	 * @param record
+	 * @throws IOException if the file could not be extended
+	 */
+	public synchronized void append(String record) throws IOException {
+		byte[] bytes = record.getBytes(StandardCharsets.UTF_8);
+		int size = headerSize+bytes.length;
+		// room for the record and for the zero length after it
+		if(region==null || position+size+4>regionStart+region.capacity()) {
+			map(Math.max(regionSize, size+4));
+		}
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+		int at = (int) (position-regionStart);
+		region.putInt(at+4, (int) crc.getValue());
+		region.position(at+headerSize);
+		region.put(bytes);
+		// the length last, so that the record is not there until it is whole
+		region.putInt(at, bytes.length);
+		position += size;
+	}
+
+	/**
+	 * Map the next region, from the end of the records, and write the
+	 * region before it to the disk, using the writer if there is one.
+	 * @param size
+	 * @throws IOException
+	 */
+	private void map(int size) throws IOException {
+		if(region!=null) {
+			MappedByteBuffer full = region;
+			if(writer!=null) {
+				previousRegion = full;
+				writer.execute(full::force);
+			} else {
+				full.force();
+			}
+		}
+		region = channel.map(FileChannel.MapMode.READ_WRITE, position, size);
+		regionStart = position;
+	}
+
+	/**
+	 * Write the records appended so far to the disk. Records appended
+	 * meanwhile may be written as well.
+	 */
+	public void force() {
+		MappedByteBuffer previous;
+		MappedByteBuffer current;
+		synchronized(this) {
+			previous = previousRegion;
+			current = region;
+			previousRegion = null;
+		}
+		// a full region may still be waiting for the writer
+		if(previous!=null) previous.force();
+		if(current!=null) current.force();
+	}
+
+	/**
+	 * Write the records to the disk and close the log, leaving the file
+	 * as long as its records.
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException {
+		force();
+		region = null;
+		channel.truncate(position);
+		channel.close();
+	}
+
+	/**
+	 * @return the length of the records, in bytes
+	 */
+	public synchronized long length() {
+		return position;
+	}
+
+	/**
+	 * @return the file of the log
+	 */
+	public Path getPath() {
+		return path;
+	}
+}
@@ -0,0 +1,106 @@
+package pb.utils;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An interned, typed event name. Each distinct event name is given a small
+ * integer id the first time it is seen, which {@link pb.utils.Eventable} uses
+ * to look up callbacks with an array index rather than by hashing the name on
+ * every emit. The type parameter is the type of the single event argument.
+ * <br/>
+ * Use this class like:
+ * <code>
+ * static final EventKey&lt;String&gt; queryIndexKey = EventKey.of("QUERY_INDEX");
+ * endpoint.on(queryIndexKey, (query)->{...});
+ * endpoint.emit(queryIndexKey, "keyword");
+ * </code>
+ * The key and its plain String name are interchangeable, so callbacks
+ * registered using the String name still receive events emitted using the
+ * key, and vice versa.
+ * @param <T> the type of the event argument
+ * @author aaron
+ *
+ */
+public final class EventKey<T> {
+	
+	/**
+	 * All keys, by name.
+	 */
+	private static final Map<String,EventKey<?>> keys = new ConcurrentHashMap<>();
+	
+	/**
+	 * Next id to hand out.
+	 */
+	private static final AtomicInteger nextId = new AtomicInteger(0);
+	
+	/**
+	 * The special key "*" for callbacks that receive all events. It always
+	 * has id 0.
+	 */
+	public static final EventKey<Object> any = of("*");
+	
+	/**
+	 * The event name.
+	 */
+	private final String name;
+	
+	/**
+	 * The interned id of the event name.
+	 */
+	private final int id;
+	
+	private EventKey(String name, int id) {
+		this.name=name;
+		this.id=id;
+	}
+	
+	/**
+	 * Get the key for an event name, creating it if it has not been seen
+	 * before. The same key object is always returned for the same name.
+	 * @param name event name
+	 * @return the key for the event name
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> EventKey<T> of(String name) {
+		EventKey<?> key = keys.get(name);
+		if(key==null) {
+			key = keys.computeIfAbsent(name, (n)->new EventKey<Object>(n,nextId.getAndIncrement()));
+		}
+		return (EventKey<T>) key;
+	}
+
+	/**
+	 * Get the key for an event name without creating one, e.g. for names
+	 * received from the other side of a connection, which would otherwise
+	 * each be kept for good. A name that has no key has never had callbacks.
+	 * @param name event name
+	 * @return the key for the event name, or null if it has not been seen
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> EventKey<T> lookup(String name) {
+		return (EventKey<T>) keys.get(name);
+	}
+
+	/**
+	 *
+	 * @return the event name
+	 */
+	public String getName() {
+		return name;
+	}
+	
+	/**
+	 * 
+	 * @return the interned id of the event name
+	 */
+	public int getId() {
+		return id;
+	}
+	
+	@Override
+	public String toString() {
+		return name;
+	}
+}
@@ -1,34 +1,109 @@
 package pb.utils;
 
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Logger;
 
+import pb.protocols.event.IAnyEventCallback;
 import pb.protocols.event.IEventCallback;
+import pb.protocols.event.ITypedEventCallback;
 
 /**
- * Simple eventable object. Does not provide for
- * canceling event callbacks.
+ * Simple eventable object. Callbacks can be canceled, either by using the
+ * {@link pb.utils.Subscription} handle returned when registering them or by
+ * using {@link #off(String, IEventCallback)}.
+ * <br/>
+ * Events can be named either with a plain String or with an interned
+ * {@link pb.utils.EventKey}. Callbacks are stored in an array indexed by
+ * the key id, so emitting with a key and a single argument avoids hashing
+ * the name and allocating a varargs array, as long as the callbacks for all
+ * events ("*") are {@link IAnyEventCallback}s.
  * @author aaron
  *
  */
 public class Eventable extends Thread {
 	private static Logger log = Logger.getLogger(Eventable.class.getName());
-	
+
+	/**
+	 * A registered callback, either an {@link IEventCallback} or an
+	 * {@link ITypedEventCallback}. The callback is either held strongly or, for
+	 * callbacks registered with {@link Eventable#onWeak(String, IEventCallback)},
+	 * weakly so that the emitter does not keep it alive.
+	 */
+	private static class Listener {
+		private final Object callback;
+		private final WeakReference<Object> weakCallback;
+		private final boolean once;
+
+		Listener(Object callback, boolean once, boolean weak) {
+			this.once=once;
+			if(weak) {
+				this.callback=null;
+				this.weakCallback=new WeakReference<>(callback);
+			} else {
+				this.callback=callback;
+				this.weakCallback=null;
+			}
+		}
+
+		/**
+		 * @return the callback, or null if it was weakly held and has been collected
+		 */
+		Object get() {
+			return weakCallback==null?callback:weakCallback.get();
+		}
+	}
+
+	/**
+	 * Event callbacks, indexed by {@link pb.utils.EventKey#getId()}. The lists
+	 * are copy on write so that callbacks may remove themselves (or others) while
+	 * an event is being emitted.
+	 */
+	private List<Listener>[] callbacks;
+
+	/**
+	 * The key of each list of callbacks, by the same index.
+	 */
+	private EventKey<?>[] keys;
+
 	/**
-	 * Event callbacks
+	 * Told when an event gains its first callback or loses its last one.
 	 */
-	private Map<String,List<IEventCallback>> callbacks;
-	
+	private volatile IEventCallback listeningCallback=null;
+
 	/**
 	 * Initializer
 	 */
+	@SuppressWarnings("unchecked")
 	public Eventable() {
-		callbacks=new HashMap<>();
+		callbacks=(List<Listener>[]) new List<?>[16];
+		keys=new EventKey<?>[16];
+	}
+
+	/**
+	 * Set a callback that is told when an event gains its first callback,
+	 * with args (String eventName, Boolean.TRUE), or loses its last one,
+	 * with args (String eventName, Boolean.FALSE). It is called while the
+	 * lock of this emitter is held, and is not told when all of the
+	 * callbacks are removed at once by {@link #removeAllListeners()}.
+	 * @param callback the callback, or null for none
+	 */
+	public void setListeningCallback(IEventCallback callback) {
+		listeningCallback=callback;
 	}
-	
+
+	/**
+	 * @param key
+	 * @param listening
+	 */
+	private void listening(EventKey<?> key, boolean listening) {
+		IEventCallback callback=listeningCallback;
+		if(callback!=null) callback.callback(key.getName(),listening);
+	}
+
 	/**
 	 * Send event args to all of the callbacks registered
 	 * for event name, and to all callbacks registered for special
@@ -39,21 +114,27 @@ public class Eventable extends Thread {
 	 */
 	public synchronized boolean emit(String eventName, Object... args) {
 		boolean hit=false;
-		if(callbacks.containsKey("*")) {
-			callbacks.get("*").forEach((callback)->{
-				// TODO: make this little bit of code more efficient
-				Object[] newargs=new Object[args.length+1];
-				newargs[0]=eventName;
-				for(int i=0;i<args.length;i++) newargs[i+1]=args[i];
-				callback.callback(newargs);
-			});
-			hit=true;
-		}
+		if(deliverAny(eventName,args,null)) hit=true;
 		if(localEmit(eventName,args)) hit=true;
 		if(!hit)log.warning("no callbacks for event: "+eventName);
 		return hit;
 	}
-	
+
+	/**
+	 * Send a single event argument to all of the callbacks registered for the
+	 * event key, and to all callbacks registered for special event "*".
+	 * @param key event key
+	 * @param arg event argument
+	 * @return true if at least one callback received the event
+	 */
+	public synchronized <T> boolean emit(EventKey<T> key, T arg) {
+		boolean hit=false;
+		if(deliverAny(key.getName(),null,arg)) hit=true;
+		if(localEmit(key,arg)) hit=true;
+		if(!hit)log.warning("no callbacks for event: "+key);
+		return hit;
+	}
+
 	/**
 	 * Send event args to all of the callbacks registered
 	 * for event name.
@@ -62,16 +143,111 @@ public class Eventable extends Thread {
 	 * @return true if at least one callback received the event
 	 */
 	public synchronized boolean localEmit(String eventName, Object... args) {
+		EventKey<?> key=EventKey.lookup(eventName);
+		return key!=null && deliver(key,args);
+	}
+
+	/**
+	 * Send a single event argument to all of the callbacks registered for
+	 * the event key. Callbacks registered with a String name receive the
+	 * argument as {@code args[0]}.
+	 * @param key
+	 * @param arg
+	 * @return true if at least one callback received the event
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized <T> boolean localEmit(EventKey<T> key, T arg) {
+		List<Listener> listeners=listeners(key);
+		if(listeners==null) return false;
 		boolean hit=false;
-		if(callbacks.containsKey(eventName)) {
-			callbacks.get(eventName).forEach((callback)->{
-				callback.callback(args);
-			});
+		Object[] args=null; // only needed for untyped callbacks
+		for(Listener listener : listeners) {
+			Object callback=listener.get();
+			if(callback==null || listener.once) {
+				removeListener(key,listener);
+			}
+			if(callback instanceof ITypedEventCallback) {
+				((ITypedEventCallback<T>)callback).callback(arg);
+				hit=true;
+			} else if(callback!=null) {
+				if(args==null) args=new Object[] {arg};
+				((IEventCallback)callback).callback(args);
+				hit=true;
+			}
+		}
+		return hit;
+	}
+
+	/**
+	 * Call every live callback registered for the special event "*". An
+	 * {@link IAnyEventCallback} is given an event with a single argument as
+	 * it is, the other callbacks are given the event name followed by the
+	 * arguments, in an array that is only made for them.
+	 * @param eventName
+	 * @param args the event arguments, or null if there is just arg
+	 * @param arg the event argument, if args is null
+	 * @return true if at least one callback received the event
+	 */
+	@SuppressWarnings("unchecked")
+	private boolean deliverAny(String eventName, Object[] args, Object arg) {
+		List<Listener> listeners=listeners(EventKey.any);
+		if(listeners==null) return false;
+		boolean hit=false;
+		Object[] newargs=null;
+		for(Listener listener : listeners) {
+			Object callback=listener.get();
+			if(callback==null || listener.once) {
+				removeListener(EventKey.any,listener);
+			}
+			if(callback==null) continue;
 			hit=true;
+			if(callback instanceof IAnyEventCallback && (args==null || args.length==1)) {
+				((IAnyEventCallback)callback).callback(eventName,args==null?arg:args[0]);
+			} else if(callback instanceof ITypedEventCallback) {
+				((ITypedEventCallback<Object>)callback).callback(eventName);
+			} else {
+				if(newargs==null) {
+					int length=args==null?1:args.length;
+					newargs=new Object[length+1];
+					newargs[0]=eventName;
+					if(args==null) newargs[1]=arg;
+					else System.arraycopy(args, 0, newargs, 1, length);
+				}
+				((IEventCallback)callback).callback(newargs);
+			}
+		}
+		return hit;
+	}
+
+	/**
+	 * Call every live callback registered for the event key, dropping
+	 * once-only callbacks and weak callbacks that have been collected.
+	 * Typed callbacks receive {@code args[0]}.
+	 * @param key
+	 * @param args
+	 * @return true if at least one callback received the event
+	 */
+	@SuppressWarnings("unchecked")
+	private boolean deliver(EventKey<?> key, Object[] args) {
+		List<Listener> listeners=listeners(key);
+		if(listeners==null) return false;
+		boolean hit=false;
+		for(Listener listener : listeners) {
+			Object callback=listener.get();
+			if(callback==null || listener.once) {
+				removeListener(key,listener);
+			}
+			if(callback instanceof ITypedEventCallback) {
+				((ITypedEventCallback<Object>)callback).callback(args.length>0?args[0]:null);
+				hit=true;
+			} else if(callback!=null) {
+				((IEventCallback)callback).callback(args);
+				hit=true;
+			}
 		}
 		return hit;
 	}
-	
+
 	/**
 	 * Add a new callback for an event. The special event name "*" is used
 	 * for callbacks that want to receive all events.
@@ -79,11 +255,224 @@ public class Eventable extends Thread {
 	 * @param callback callback to handle event
 	 * @return this event handler for chaining
 	 */
-	public synchronized Eventable on(String eventName, IEventCallback callback) {
-		if(!callbacks.containsKey(eventName)) {
-			callbacks.put(eventName,new ArrayList<IEventCallback>());
+	public Eventable on(String eventName, IEventCallback callback) {
+		addListener(EventKey.of(eventName),new Listener(callback,false,false));
+		return this;
+	}
+
+	/**
+	 * Add a new typed callback for an event.
+	 * @param key event key
+	 * @param callback callback to handle event
+	 * @return this event handler for chaining
+	 */
+	public <T> Eventable on(EventKey<T> key, ITypedEventCallback<T> callback) {
+		addListener(key,new Listener(callback,false,false));
+		return this;
+	}
+
+	/**
+	 * Add a new callback for an event and return a handle that can be
+	 * used to remove it again.
+	 * @param eventName event name
+	 * @param callback callback to handle event
+	 * @return the subscription for the callback
+	 */
+	public Subscription subscribe(String eventName, IEventCallback callback) {
+		return addListener(EventKey.of(eventName),new Listener(callback,false,false));
+	}
+
+	/**
+	 * Add a new typed callback for an event and return a handle that can be
+	 * used to remove it again.
+	 * @param key event key
+	 * @param callback callback to handle event
+	 * @return the subscription for the callback
+	 */
+	public <T> Subscription subscribe(EventKey<T> key, ITypedEventCallback<T> callback) {
+		return addListener(key,new Listener(callback,false,false));
+	}
+
+	/**
+	 * Add a callback that is removed after it has been called once.
+	 * @param eventName event name
+	 * @param callback callback to handle event
+	 * @return the subscription for the callback
+	 */
+	public Subscription once(String eventName, IEventCallback callback) {
+		return addListener(EventKey.of(eventName),new Listener(callback,true,false));
+	}
+
+	/**
+	 * Add a typed callback that is removed after it has been called once.
+	 * @param key event key
+	 * @param callback callback to handle event
+	 * @return the subscription for the callback
+	 */
+	public <T> Subscription once(EventKey<T> key, ITypedEventCallback<T> callback) {
+		return addListener(key,new Listener(callback,true,false));
+	}
+
+	/**
+	 * Add a callback that is only weakly held by this emitter. The caller
+	 * must keep a strong reference to the callback for as long as it wants
+	 * to receive events; once the callback is garbage collected it is
+	 * silently removed.
+	 * @param eventName event name
+	 * @param callback callback to handle event
+	 * @return the subscription for the callback
+	 */
+	public Subscription onWeak(String eventName, IEventCallback callback) {
+		return addListener(EventKey.of(eventName),new Listener(callback,false,true));
+	}
+
+	/**
+	 * Add a typed callback that is only weakly held by this emitter.
+	 * @see #onWeak(String, IEventCallback)
+	 * @param key event key
+	 * @param callback callback to handle event
+	 * @return the subscription for the callback
+	 */
+	public <T> Subscription onWeak(EventKey<T> key, ITypedEventCallback<T> callback) {
+		return addListener(key,new Listener(callback,false,true));
+	}
+
+	/**
+	 * Remove a callback that was registered for an event.
+	 * @param eventName event name
+	 * @param callback the callback that was registered
+	 * @return this event handler for chaining
+	 */
+	public Eventable off(String eventName, IEventCallback callback) {
+		EventKey<?> key=EventKey.lookup(eventName);
+		if(key!=null) removeCallback(key,callback);
+		return this;
+	}
+
+	/**
+	 * Remove a typed callback that was registered for an event.
+	 * @param key event key
+	 * @param callback the callback that was registered
+	 * @return this event handler for chaining
+	 */
+	public <T> Eventable off(EventKey<T> key, ITypedEventCallback<T> callback) {
+		removeCallback(key,callback);
+		return this;
+	}
+
+	/**
+	 * Remove all callbacks that were registered for an event.
+	 * @param eventName event name
+	 * @return this event handler for chaining
+	 */
+	public synchronized Eventable off(String eventName) {
+		EventKey<?> key=EventKey.lookup(eventName);
+		if(key!=null && listeners(key)!=null) {
+			callbacks[key.getId()]=null;
+			listening(key,false);
 		}
-		callbacks.get(eventName).add(callback);
 		return this;
 	}
+
+	/**
+	 * Remove every callback from this event handler, so that nothing
+	 * they refer to is kept alive by it.
+	 */
+	public synchronized void removeAllListeners() {
+		Arrays.fill(callbacks,null);
+	}
+
+	/**
+	 * Remove every callback from this event handler except those registered
+	 * for one event.
+	 * @param keep the event whose callbacks are kept
+	 */
+	public synchronized void removeAllListeners(EventKey<?> keep) {
+		List<Listener> kept=listeners(keep);
+		Arrays.fill(callbacks,null);
+		if(kept!=null) callbacks[keep.getId()]=kept;
+	}
+
+	/**
+	 *
+	 * @param eventName event name
+	 * @return the number of callbacks registered for the event
+	 */
+	public synchronized int listenerCount(String eventName) {
+		EventKey<?> key=EventKey.lookup(eventName);
+		List<Listener> listeners=key==null?null:listeners(key);
+		return listeners==null?0:listeners.size();
+	}
+
+	/**
+	 *
+	 * @return the number of callbacks registered for all events
+	 */
+	public synchronized int listenerCount() {
+		int count=0;
+		for(List<Listener> listeners : callbacks) {
+			if(listeners!=null) count+=listeners.size();
+		}
+		return count;
+	}
+
+	/**
+	 *
+	 * @return the names of the events that have callbacks
+	 */
+	public synchronized List<String> listeningTo() {
+		List<String> names=new ArrayList<>();
+		for(int id=0;id<callbacks.length;id++) {
+			if(callbacks[id]!=null) names.add(keys[id].getName());
+		}
+		return names;
+	}
+
+	/**
+	 * @param key
+	 * @return the callbacks for the key or null if there are none
+	 */
+	private List<Listener> listeners(EventKey<?> key) {
+		int id=key.getId();
+		return id<callbacks.length?callbacks[id]:null;
+	}
+
+	private synchronized Subscription addListener(EventKey<?> key, Listener listener) {
+		int id=key.getId();
+		if(id>=callbacks.length) {
+			callbacks=Arrays.copyOf(callbacks, Math.max(id+1, callbacks.length*2));
+			keys=Arrays.copyOf(keys, callbacks.length);
+		}
+		boolean first=callbacks[id]==null;
+		if(first) {
+			callbacks[id]=new CopyOnWriteArrayList<Listener>();
+			keys[id]=key;
+		}
+		callbacks[id].add(listener);
+		if(first) listening(key,true);
+		return new Subscription(this,key,listener);
+	}
+
+	private synchronized void removeCallback(EventKey<?> key, Object callback) {
+		List<Listener> listeners=listeners(key);
+		if(listeners==null) return;
+		for(Listener listener : listeners) {
+			if(listener.get()==callback) removeListener(key,listener);
+		}
+	}
+
+	/**
+	 * Remove a listener, used by {@link pb.utils.Subscription#off()}.
+	 * @param key
+	 * @param listener
+	 */
+	synchronized void removeListener(EventKey<?> key, Object listener) {
+		List<Listener> listeners=listeners(key);
+		if(listeners==null) return;
+		if(!listeners.remove(listener)) return;
+		if(listeners.isEmpty()) {
+			callbacks[key.getId()]=null;
+			listening(key,false);
+		}
+	}
 }
@@ -0,0 +1,139 @@
+package pb.utils;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * A set whose members are kept in order of a rank, highest first, so that
+ * the best members are read straight off the front rather than sorting
+ * the set each time. Members with the same rank are in their natural order.
+ * <p>
+ * Members are read without locking, while ranking them locks the set. A
+ * member that is being ranked again is added at its new rank before it is
+ * removed from its old one, so it is never missing from a read.
+ *
+ * @see {@link pb.IndexServer#keyValueMap}
+ * @author aaron
+ *
+ * @param <T> the members
+ */
+public class RankedSet<T extends Comparable<T>> {
+
+	private static class Ranked<T extends Comparable<T>> implements Comparable<Ranked<T>> {
+		final T member;
+		final long rank;
+
+		Ranked(T member, long rank) {
+			this.member = member;
+			this.rank = rank;
+		}
+
+		@Override
+		public int compareTo(Ranked<T> o) {
+			int c = Long.compare(o.rank,rank); // highest first
+			return c!=0?c:member.compareTo(o.member);
+		}
+	}
+
+	private final ConcurrentSkipListSet<Ranked<T>> order = new ConcurrentSkipListSet<>();
+
+	private final Map<T,Long> ranks = new ConcurrentHashMap<>();
+
+	/**
+	 * Add a member, or change the rank of one.
+	 * @param member
+	 * @param rank
+	 * @return true if the member was not already in the set
+	 */
+	public synchronized boolean put(T member, long rank) {
+		Long old = ranks.put(member,rank);
+		if(old!=null && old==rank) return false;
+		order.add(new Ranked<>(member,rank));
+		if(old==null) return true;
+		order.remove(new Ranked<>(member,old));
+		return false;
+	}
+
+	/**
+	 * Add a member, or raise the rank of one, but never lower it, so that
+	 * ranks given out of order end up at the highest.
+	 * @param member
+	 * @param rank
+	 * @return true if the member was added or its rank was raised
+	 */
+	public synchronized boolean raise(T member, long rank) {
+		Long old = ranks.get(member);
+		if(old!=null && old>=rank) return false;
+		put(member,rank);
+		return true;
+	}
+	
+	/**
+	 * @param member
+	 * @return true if the member was in the set
+	 */
+	public synchronized boolean remove(T member) {
+		Long old = ranks.remove(member);
+		if(old==null) return false;
+		order.remove(new Ranked<>(member,old));
+		return true;
+	}
+
+	/**
+	 * @return the member with the highest rank, or null if the set is empty
+	 */
+	public T first() {
+		for(Ranked<T> ranked : order) return ranked.member; // first() throws if emptied meanwhile
+		return null;
+	}
+
+	/**
+	 * @param k
+	 * @return at most k members with the highest ranks, highest first
+	 */
+	public List<T> top(int k) {
+		List<T> top = new ArrayList<>(Math.max(0,Math.min(k,16)));
+		Set<T> seen = new HashSet<>();
+		for(Ranked<T> ranked : order) {
+			if(top.size()>=k) break;
+			// a member being ranked again can be read at both ranks
+			if(seen.add(ranked.member)) top.add(ranked.member);
+		}
+		return top;
+	}
+
+	/**
+	 * @param member
+	 * @return the rank of the member, or null if it is not in the set
+	 */
+	public Long getRank(T member) {
+		return ranks.get(member);
+	}
+
+	/**
+	 * @param member
+	 * @return true if the member is in the set
+	 */
+	public boolean contains(T member) {
+		return ranks.containsKey(member);
+	}
+
+	/**
+	 * @return the members, in no particular order
+	 */
+	public Set<T> members() {
+		return new HashSet<>(ranks.keySet());
+	}
+
+	/**
+	 * @return the number of members
+	 */
+	public int size() {
+		return ranks.size();
+	}
+}
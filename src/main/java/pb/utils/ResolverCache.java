@@ -0,0 +1,86 @@
+package pb.utils;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Caches host name lookups for {@link #ttl} ms, so that retries and
+ * connections to the same host do not look the name up again. When many
+ * connections to a host are made at once, e.g. when all of the boards shared
+ * by a peer are announced together, only one of them looks the name up and
+ * the others wait for its answer. Failed lookups are not cached.
+ *
+ * @see {@link pb.managers.PeerManager}
+ * @author aaron
+ *
+ */
+public class ResolverCache {
+
+	/**
+	 * Time in ms that a looked up address is kept.
+	 */
+	public int ttl = 30000;
+
+	/**
+	 * A lookup, either in progress or done.
+	 */
+	private static class Entry {
+		final CompletableFuture<InetAddress> address = new CompletableFuture<>();
+
+		/**
+		 * When the address should be looked up again, not until the
+		 * lookup in progress has finished.
+		 */
+		volatile long expires = Long.MAX_VALUE;
+	}
+
+	/**
+	 * Lookups by host name.
+	 */
+	private final ConcurrentHashMap<String,Entry> entries = new ConcurrentHashMap<>();
+
+	/**
+	 * Look up a host name, using the cached address if it has not expired.
+	 * @param host
+	 * @return the address of the host
+	 * @throws UnknownHostException if the host can't be found
+	 */
+	public InetAddress resolve(String host) throws UnknownHostException {
+		Entry mine = new Entry();
+		long now = Instant.now().toEpochMilli();
+		Entry entry = entries.compute(host, (h,e)->{
+			return (e==null || e.expires<=now) ? mine : e;
+		});
+		if(entry==mine) {
+			try {
+				InetAddress address = InetAddress.getByName(host);
+				mine.expires = Instant.now().toEpochMilli()+ttl;
+				mine.address.complete(address);
+				return address;
+			} catch (UnknownHostException e) {
+				entries.remove(host,mine);
+				mine.address.completeExceptionally(e);
+				throw e;
+			}
+		}
+		try {
+			return entry.address.get();
+		} catch (ExecutionException e) {
+			throw (UnknownHostException) e.getCause();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new UnknownHostException("interrupted looking up "+host);
+		}
+	}
+
+	/**
+	 * Forget all of the cached addresses.
+	 */
+	public void clear() {
+		entries.clear();
+	}
+}
@@ -0,0 +1,67 @@
+package pb.utils;
+
+/**
+ * Handle returned when registering a callback on an {@link pb.utils.Eventable}.
+ * Calling {@link #off()} removes the callback so that it, and everything it
+ * refers to, is no longer kept alive by the emitter.
+ *
+ * @see {@link pb.utils.Eventable#subscribe(String, pb.protocols.event.IEventCallback)}
+ * @see {@link pb.utils.Eventable#once(String, pb.protocols.event.IEventCallback)}
+ * @see {@link pb.utils.Eventable#onWeak(String, pb.protocols.event.IEventCallback)}
+ * @author aaron
+ *
+ */
+public class Subscription {
+
+	/**
+	 * The emitter the callback is registered on.
+	 */
+	private final Eventable emitter;
+
+	/**
+	 * The event the callback is registered for.
+	 */
+	private final EventKey<?> key;
+
+	/**
+	 * The registered listener, as stored by the emitter.
+	 */
+	private final Object listener;
+
+	/**
+	 * Whether off() has been called already.
+	 */
+	private volatile boolean cancelled=false;
+
+	Subscription(Eventable emitter, EventKey<?> key, Object listener) {
+		this.emitter=emitter;
+		this.key=key;
+		this.listener=listener;
+	}
+
+	/**
+	 * Remove the callback from the emitter. Calling this more than once
+	 * has no further effect.
+	 */
+	public void off() {
+		if(cancelled) return;
+		cancelled=true;
+		emitter.removeListener(key,listener);
+	}
+
+	/**
+	 *
+	 * @return the event name that the callback was registered for
+	 */
+	public String getEventName() {
+		return key.getName();
+	}
+
+	/**
+	 *
+	 * @return true if {@link #off()} has been called
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+}
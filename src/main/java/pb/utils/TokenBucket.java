@@ -0,0 +1,64 @@
+package pb.utils;
+
+import java.time.Instant;
+
+/**
+ * A token bucket, allowing a number of things per second on average and a
+ * burst of them at once. A token that is not there yet can be reserved, in
+ * which case the caller is told how long to wait before it is theirs, and
+ * later callers wait behind it.
+ *
+ * @see {@link pb.managers.endpoint.RateLimits}
+ * @author aaron
+ *
+ */
+public class TokenBucket {
+
+	/**
+	 * Tokens added per ms.
+	 */
+	private final double rate;
+
+	/**
+	 * Most tokens the bucket holds.
+	 */
+	private final double burst;
+
+	/**
+	 * Tokens in the bucket, negative when tokens have been reserved ahead.
+	 */
+	private double tokens;
+
+	/**
+	 * When tokens were last added, in ms.
+	 */
+	private long last;
+
+	/**
+	 * Initialise a full bucket.
+	 * @param perSecond tokens added per second
+	 * @param burst most tokens the bucket holds, at least one
+	 */
+	public TokenBucket(double perSecond, int burst) {
+		this.rate=perSecond/1000;
+		this.burst=Math.max(1,burst);
+		this.tokens=this.burst;
+		this.last=Instant.now().toEpochMilli();
+	}
+
+	/**
+	 * Take a token, reserving it if the bucket is empty.
+	 * @param maxWait most ms the caller is willing to wait for the token
+	 * @return ms to wait before the token is the caller's, or -1 if that is
+	 * longer than maxWait, in which case no token is taken
+	 */
+	public synchronized long reserve(long maxWait) {
+		long now=Instant.now().toEpochMilli();
+		tokens=Math.min(burst,tokens+(now-last)*rate);
+		last=now;
+		long wait=tokens>=1 ? 0 : (long) Math.ceil((1-tokens)/rate);
+		if(wait>maxWait) return -1;
+		tokens-=1;
+		return wait;
+	}
+}
@@ -0,0 +1,190 @@
+package pb.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Subscriptions to topics, kept in a trie by topic segment so that the
+ * subscribers of a topic are found by walking down its segments, rather
+ * than by testing every subscription. Topics are segments separated by
+ * '/', e.g. "boards/host:port/board1". A subscription is either to a topic
+ * exactly, or to every topic under a prefix when it ends in "/*", e.g.
+ * "boards/*", while "*" on its own is every topic.
+ * <p>
+ * Topics are matched without locking, while subscribing and unsubscribing
+ * lock the trie, so that nodes left empty can be removed safely.
+ *
+ * @see {@link pb.managers.ServerManager#subscribe(pb.managers.endpoint.Endpoint, String)}
+ * @author aaron
+ *
+ * @param <T> the subscribers
+ */
+public class TopicTrie<T> {
+
+	public static final String separator = "/";
+	public static final String wildcard = "*";
+
+	private static class Node<T> {
+		final Map<String,Node<T>> children = new ConcurrentHashMap<>();
+
+		/**
+		 * Subscribed to the topic of this node.
+		 */
+		final Set<T> exact = ConcurrentHashMap.newKeySet();
+
+		/**
+		 * Subscribed to every topic under this node.
+		 */
+		final Set<T> below = ConcurrentHashMap.newKeySet();
+
+		boolean isEmpty() {
+			return children.isEmpty() && exact.isEmpty() && below.isEmpty();
+		}
+	}
+
+	private final Node<T> root = new Node<>();
+
+	/**
+	 * The patterns each subscriber is subscribed to, so that they can all be
+	 * removed together.
+	 */
+	private final Map<T,Set<String>> patterns = new ConcurrentHashMap<>();
+
+	/**
+	 * Subscribe to a topic, or to the topics under a prefix.
+	 * @param subscriber
+	 * @param pattern a topic, or a prefix followed by "/*", or "*"
+	 * @return true if the subscriber was not already subscribed to the pattern
+	 * @throws IllegalArgumentException if the pattern is not a valid topic
+	 * or prefix
+	 */
+	public synchronized boolean subscribe(T subscriber, String pattern) {
+		List<String> segments = segments(pattern,true);
+		boolean wild = isWildcard(segments);
+		Node<T> node = root;
+		for(String segment : wild?segments.subList(0,segments.size()-1):segments) {
+			node = node.children.computeIfAbsent(segment,(s)->new Node<>());
+		}
+		if(!(wild?node.below:node.exact).add(subscriber)) return false;
+		patterns.computeIfAbsent(subscriber,(s)->ConcurrentHashMap.newKeySet()).add(pattern);
+		return true;
+	}
+
+	/**
+	 * Unsubscribe from a pattern given to {@link #subscribe(Object, String)}.
+	 * @param subscriber
+	 * @param pattern
+	 * @return true if the subscriber was subscribed to the pattern
+	 * @throws IllegalArgumentException if the pattern is not a valid topic
+	 * or prefix
+	 */
+	public synchronized boolean unsubscribe(T subscriber, String pattern) {
+		List<String> segments = segments(pattern,true);
+		boolean wild = isWildcard(segments);
+		if(wild) segments = segments.subList(0,segments.size()-1);
+		List<Node<T>> path = new ArrayList<>();
+		Node<T> node = root;
+		path.add(node);
+		for(String segment : segments) {
+			node = node.children.get(segment);
+			if(node==null) return false;
+			path.add(node);
+		}
+		if(!(wild?node.below:node.exact).remove(subscriber)) return false;
+		Set<String> subscribed = patterns.get(subscriber);
+		if(subscribed!=null) {
+			subscribed.remove(pattern);
+			if(subscribed.isEmpty()) patterns.remove(subscriber);
+		}
+		// remove the nodes that are no longer needed, deepest first
+		for(int i=path.size()-1;i>0 && path.get(i).isEmpty();i--) {
+			path.get(i-1).children.remove(segments.get(i-1));
+		}
+		return true;
+	}
+
+	/**
+	 * Remove all of a subscriber's subscriptions, e.g. when it has gone.
+	 * @param subscriber
+	 */
+	public synchronized void unsubscribeAll(T subscriber) {
+		Set<String> subscribed = patterns.get(subscriber);
+		if(subscribed==null) return;
+		for(String pattern : new ArrayList<>(subscribed)) {
+			unsubscribe(subscriber,pattern);
+		}
+	}
+
+	/**
+	 * @param topic
+	 * @return the subscribers of the topic, including those subscribed to a
+	 * prefix of it
+	 * @throws IllegalArgumentException if the topic is not valid
+	 */
+	public Set<T> match(String topic) {
+		Set<T> subscribers = new HashSet<>();
+		Node<T> node = root;
+		for(String segment : segments(topic,false)) {
+			subscribers.addAll(node.below);
+			node = node.children.get(segment);
+			if(node==null) return subscribers;
+		}
+		subscribers.addAll(node.exact);
+		return subscribers;
+	}
+
+	/**
+	 * @param subscriber
+	 * @return the patterns the subscriber is subscribed to
+	 */
+	public Set<String> getPatterns(T subscriber) {
+		Set<String> subscribed = patterns.get(subscriber);
+		return subscribed==null?Collections.emptySet():new HashSet<>(subscribed);
+	}
+
+	/**
+	 * @param subscriber
+	 * @return the number of patterns the subscriber is subscribed to
+	 */
+	public int numPatterns(T subscriber) {
+		Set<String> subscribed = patterns.get(subscriber);
+		return subscribed==null?0:subscribed.size();
+	}
+
+	/**
+	 * @return the number of subscribers with at least one subscription
+	 */
+	public int numSubscribers() {
+		return patterns.size();
+	}
+
+	private static boolean isWildcard(List<String> segments) {
+		return segments.get(segments.size()-1).equals(wildcard);
+	}
+
+	/**
+	 * @param topic
+	 * @param allowWildcard whether the last segment may be the wildcard
+	 * @return the segments of the topic
+	 * @throws IllegalArgumentException if the topic is empty, has an empty
+	 * segment or has a wildcard where it is not allowed
+	 */
+	private static List<String> segments(String topic, boolean allowWildcard) {
+		if(topic==null || topic.isEmpty()) throw new IllegalArgumentException("topic is empty");
+		String[] parts = topic.split(separator,-1);
+		for(int i=0;i<parts.length;i++) {
+			if(parts[i].isEmpty())
+				throw new IllegalArgumentException("topic has an empty segment: "+topic);
+			if(parts[i].equals(wildcard) && (!allowWildcard || i<parts.length-1))
+				throw new IllegalArgumentException("wildcard not allowed here: "+topic);
+		}
+		List<String> segments = new ArrayList<>(parts.length);
+		Collections.addAll(segments,parts);
+		return segments;
+	}
+}
@@ -0,0 +1,180 @@
+package pb.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An index of names for finding those that contain a term, ignoring case,
+ * without testing every name. Each name is folded to lower case once, when
+ * it is added, and listed under each trigram (three characters in a row)
+ * that it contains. The names that contain a term must contain all of the
+ * term's trigrams, so the lists for those trigrams are intersected and only
+ * the names in all of them are tested. Terms shorter than a trigram are
+ * tested against every name, but their names are already folded.
+ * <p>
+ * Names are given numbers in the order they are added, so each list is
+ * kept in increasing order by appending to it. Names can't be removed.
+ * Names are found without locking, while adding names locks the index.
+ *
+ * @see {@link pb.IndexServer#queryIndex}
+ * @author aaron
+ *
+ */
+public class TrigramIndex {
+
+	/**
+	 * Characters in a trigram.
+	 */
+	public static final int n = 3;
+
+	/**
+	 * Numbers of the names that contain a trigram, in increasing order.
+	 * Only one thread appends at a time, and a reader that reads size first
+	 * sees the numbers up to it.
+	 */
+	private static class Postings {
+		volatile int[] numbers = new int[2];
+		volatile int size = 0;
+
+		void append(int number) {
+			int[] a = numbers;
+			if(size>0 && a[size-1]==number) return; // trigram is repeated in the name
+			if(size==a.length) {
+				a = Arrays.copyOf(a,a.length*2);
+				numbers = a;
+			}
+			a[size] = number;
+			size = size+1;
+		}
+	}
+
+	/**
+	 * Lists of names by trigram, packed into a long.
+	 */
+	private final Map<Long,Postings> postings = new ConcurrentHashMap<>();
+
+	/**
+	 * The names and their folded forms, by number. Written in the same way
+	 * as the postings, with count written last.
+	 */
+	private volatile String[] names = new String[16];
+	private volatile String[] folded = new String[16];
+	private volatile int count = 0;
+
+	/**
+	 * Numbers of the names, used when adding.
+	 */
+	private final Map<String,Integer> numbers = new HashMap<>();
+
+	/**
+	 * Add a name to the index.
+	 * @param name
+	 * @return true if the name was not already in the index
+	 */
+	public synchronized boolean add(String name) {
+		if(numbers.containsKey(name)) return false;
+		int number = count;
+		String lower = fold(name);
+		for(int i=0;i+n<=lower.length();i++) {
+			Long trigram = trigram(lower,i);
+			Postings list = postings.get(trigram);
+			if(list==null) {
+				list = new Postings();
+				postings.put(trigram,list);
+			}
+			list.append(number);
+		}
+		if(number==names.length) {
+			folded = Arrays.copyOf(folded,number*2);
+			names = Arrays.copyOf(names,number*2);
+		}
+		names[number] = name;
+		folded[number] = lower;
+		numbers.put(name,number);
+		count = number+1;
+		return true;
+	}
+
+	/**
+	 * @param term
+	 * @return the names that contain the term, ignoring case, in the order
+	 * they were added
+	 */
+	public List<String> find(String term) {
+		int limit = count;
+		String[] names = this.names;
+		String[] folded = this.folded;
+		String lower = fold(term);
+		List<String> found = new ArrayList<>();
+		if(lower.length()<n) {
+			for(int i=0;i<limit;i++) {
+				if(folded[i].contains(lower)) found.add(names[i]);
+			}
+			return found;
+		}
+		// the lists of the term's trigrams, shortest first
+		List<Postings> lists = new ArrayList<>();
+		Set<Long> trigrams = new LinkedHashSet<>();
+		for(int i=0;i+n<=lower.length();i++) trigrams.add(trigram(lower,i));
+		for(Long trigram : trigrams) {
+			Postings list = postings.get(trigram);
+			if(list==null) return found;
+			lists.add(list);
+		}
+		int[] limits = new int[lists.size()];
+		int[][] arrays = new int[lists.size()][];
+		lists.sort(Comparator.comparingInt((list)->list.size));
+		for(int i=0;i<lists.size();i++) {
+			// size before numbers, then no further than the names we have
+			limits[i] = lists.get(i).size;
+			arrays[i] = lists.get(i).numbers;
+		}
+		candidates:
+		for(int j=0;j<limits[0];j++) {
+			int number = arrays[0][j];
+			if(number>=limit) break; // added after we started
+			for(int i=1;i<arrays.length;i++) {
+				if(Arrays.binarySearch(arrays[i],0,limits[i],number)<0) continue candidates;
+			}
+			if(folded[number].contains(lower)) found.add(names[number]);
+		}
+		return found;
+	}
+
+	/**
+	 * @param name
+	 * @return true if the name is in the index
+	 */
+	public synchronized boolean contains(String name) {
+		return numbers.containsKey(name);
+	}
+
+	/**
+	 * @return the number of names in the index
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * @return the number of different trigrams in the names
+	 */
+	public int numTrigrams() {
+		return postings.size();
+	}
+
+	private static String fold(String s) {
+		return s.toLowerCase();
+	}
+
+	private static long trigram(String s, int i) {
+		return ((long) s.charAt(i)<<32) | ((long) s.charAt(i+1)<<16) | s.charAt(i+2);
+	}
+}